@@ -1,16 +1,603 @@
 package edu.wisc.cs.sdn.apps.l3routing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.routing.Link;
 
-public class Graph {
-	public Graph()	{
+/**
+ * The switches and the links between them, with the next hop on a shortest
+ * path from every switch to every other switch. Switches are numbered
+ * densely from 0, so paths are found with a breadth-first search towards
+ * each destination over arrays of ints, and next hops are kept in a matrix
+ * of shorts. Links are unweighted, so a breadth-first search finds the same
+ * paths Dijkstra's algorithm would. The searches towards different
+ * destinations share nothing but the links, so they can be run in parallel.
+ *
+ * Once paths are computed, links can be added and removed and the search
+ * tree towards each destination is repaired in place, touching only the
+ * switches whose distance to the destination changes. The switches whose
+ * next hop changed are recorded until they are taken with takeChanges. The
+ * set of switches is fixed; a new switch needs a new graph.
+ */
+public class Graph
+{
+	// Next hop of a switch with no path to the destination, and index of an
+	// unknown switch
+	public static final short NONE = -1;
+	
+	// Distance of a switch with no path to the destination
+	private static final short UNREACHABLE = Short.MAX_VALUE;
+	
+	// DPIDs of the switches, by index
+	private final long[] switchIds;
+	
+	// Indexes of the switches, by DPID
+	private final Map<Long,Integer> indexes;
+	
+	// Indexes of the switches each switch has a link to, and from; only the
+	// first outDegrees and inDegrees entries of each array are used
+	private final int[][] outNeighbors;
+	private final int[] outDegrees;
+	private final int[][] inNeighbors;
+	private final int[] inDegrees;
+	
+	// Port out which each switch reaches each neighbor it has a link to
+	private final LinkPorts ports;
+	
+	// Index of the next switch on a shortest path, and number of hops to the
+	// destination, by index of the destination and then of the switch; null
+	// until paths are computed. A destination's row of next hops is replaced
+	// rather than changed when its tree is repaired, so readers on other
+	// threads never see a half-repaired row.
+	private short[][] nextHops;
+	private short[][] distances;
+	
+	// Switches whose next hop changed since changes were last taken, by index
+	// of the destination; null for destinations with no changes
+	private BitSet[] changes;
+	
+	// Switches whose distance may grow while a tree is repaired
+	private final boolean[] affected;
+	
+	/**
+	 * Create a graph of the network.
+	 * @param switchIds DPIDs of the switches
+	 * @param links links between switches; links to switches that are not in
+	 *         switchIds are left out
+	 * @throws IllegalArgumentException if there are too many switches to
+	 *         number with shorts
+	 */
+	public Graph(Collection<Long> switchIds, Collection<Link> links)
+	{
+		if (switchIds.size() > Short.MAX_VALUE - 1)
+		{
+			throw new IllegalArgumentException(String.format(
+					"Too many switches: %d", switchIds.size()));
+		}
+		
+		int count = switchIds.size();
+		this.switchIds = new long[count];
+		this.indexes = new HashMap<Long,Integer>();
+		int index = 0;
+		for (Long switchId : switchIds)
+		{
+			this.switchIds[index] = switchId;
+			this.indexes.put(switchId, index);
+			index++;
+		}
+		
+		this.outNeighbors = new int[count][];
+		this.outDegrees = new int[count];
+		this.inNeighbors = new int[count][];
+		this.inDegrees = new int[count];
+		this.ports = new LinkPorts();
+		for (int i = 0; i < count; i++)
+		{
+			this.outNeighbors[i] = new int[4];
+			this.inNeighbors[i] = new int[4];
+		}
+		for (Link link : links)
+		{
+			int src = this.getIndex(link.getSrc());
+			int dst = this.getIndex(link.getDst());
+			if (src != NONE && dst != NONE)
+			{ this.connect(src, dst, link.getSrcPort()); }
+		}
+		
+		this.changes = new BitSet[count];
+		this.affected = new boolean[count];
+	}
+	
+	/**
+	 * Get the number of switches.
+	 */
+	public int size()
+	{ return this.switchIds.length; }
+	
+	/**
+	 * Get the index of a switch.
+	 * @param switchId DPID of the switch
+	 * @return the index, NONE if the switch is not in the graph
+	 */
+	public int getIndex(long switchId)
+	{
+		Integer index = this.indexes.get(switchId);
+		return (null == index ? NONE : index);
+	}
+	
+	/**
+	 * Get the DPID of a switch.
+	 * @param index index of the switch
+	 */
+	public long getSwitchId(int index)
+	{ return this.switchIds[index]; }
+	
+	/**
+	 * Find the next hop on a shortest path from every switch to every other
+	 * switch, with one breadth-first search per destination.
+	 */
+	public void computeShortestPaths()
+	{
+		int count = this.switchIds.length;
+		short[][] nextHops = new short[count][];
+		short[][] distances = new short[count][];
+		this.searchRange(0, count, nextHops, distances);
+		this.distances = distances;
+		this.nextHops = nextHops;
+	}
+	
+	/**
+	 * Find the next hop on a shortest path from every switch to every other
+	 * switch, splitting the destinations into tasks run by an executor. Each
+	 * task fills its own rows of the matrices, so they need no locking. The
+	 * calling thread waits for every task, and links must not change in the
+	 * meantime.
+	 * @param executor the executor to run the tasks
+	 * @param tasks the number of tasks to split the destinations into
+	 */
+	public void computeShortestPaths(ExecutorService executor, int tasks)
+	{
+		final int count = this.switchIds.length;
+		final short[][] nextHops = new short[count][];
+		final short[][] distances = new short[count][];
+		int chunk = Math.max(1, (count + tasks - 1) / tasks);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < count; start += chunk)
+		{
+			final int from = start;
+			final int to = Math.min(count, start + chunk);
+			futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{ searchRange(from, to, nextHops, distances); }
+				}));
+		}
+		
+		try
+		{
+			for (Future<?> future : futures)
+			{ future.get(); }
+		}
+		catch (InterruptedException e)
+		{
+			// Finish on this thread rather than leave rows unfilled
+			Thread.currentThread().interrupt();
+			for (Future<?> future : futures)
+			{ future.cancel(false); }
+			this.computeShortestPaths();
+			return;
+		}
+		catch (ExecutionException e)
+		{ throw new IllegalStateException(e.getCause()); }
+		this.distances = distances;
+		this.nextHops = nextHops;
+	}
+	
+	/**
+	 * Fill the rows of the matrices for a range of destinations.
+	 * @param from index of the first destination
+	 * @param to index after the last destination
+	 */
+	private void searchRange(int from, int to, short[][] nextHops,
+			short[][] distances)
+	{
+		int count = this.switchIds.length;
+		int[] queue = new int[count];
+		for (int dst = from; dst < to; dst++)
+		{
+			nextHops[dst] = new short[count];
+			distances[dst] = new short[count];
+			this.search(dst, nextHops[dst], distances[dst], queue);
+		}
+	}
+	
+	/**
+	 * Search backwards along links from a destination.
+	 * @param dst index of the destination
+	 * @param nextHops where to put the next hop of each switch
+	 * @param distances where to put the distance of each switch
+	 * @param queue space for the search's queue, with room for every switch
+	 */
+	private void search(int dst, short[] nextHops, short[] distances,
+			int[] queue)
+	{
+		Arrays.fill(nextHops, NONE);
+		Arrays.fill(distances, UNREACHABLE);
+		nextHops[dst] = (short)dst;
+		distances[dst] = 0;
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = dst;
+		while (head < tail)
+		{
+			int current = queue[head++];
+			for (int i = 0; i < this.inDegrees[current]; i++)
+			{
+				int neighbor = this.inNeighbors[current][i];
+				if (distances[neighbor] != UNREACHABLE)
+				{ continue; }
+				nextHops[neighbor] = (short)current;
+				distances[neighbor] = (short)(distances[current] + 1);
+				queue[tail++] = neighbor;
+			}
+		}
+	}
+	
+	/**
+	 * Get the next hop on a shortest path from a switch to a destination.
+	 * @param index index of the switch
+	 * @param dst index of the destination
+	 * @return the index of the next hop, the destination itself if the switch
+	 *         is the destination, NONE if either switch is NONE or there is no
+	 *         path or paths have not been computed
+	 */
+	public int getNextHop(int index, int dst)
+	{
+		short[][] nextHops = this.nextHops;
+		if (NONE == index || NONE == dst || null == nextHops)
+		{ return NONE; }
+		return nextHops[dst][index];
+	}
+	
+	/**
+	 * Get the port out which a switch reaches a neighbor.
+	 * @param index index of the switch
+	 * @param neighbor index of the neighbor
+	 * @return the port, NONE if either switch is NONE or there is no link
+	 *         from the switch to the neighbor
+	 */
+	public int getPort(int index, int neighbor)
+	{
+		if (NONE == index || NONE == neighbor)
+		{ return NONE; }
+		int port = this.ports.get(index, neighbor);
+		return (LinkPorts.NONE == port ? NONE : port);
+	}
+	
+	/**
+	 * Add a link, and shorten the paths that can use it. If the link is
+	 * already there but its port changed, the switches using it are recorded
+	 * as changed.
+	 * @param srcId DPID of the switch the link is from
+	 * @param srcPort port of the link on the switch it is from
+	 * @param dstId DPID of the switch the link is to
+	 * @return false if either switch is not in the graph
+	 */
+	public boolean addLink(long srcId, int srcPort, long dstId)
+	{
+		int src = this.getIndex(srcId);
+		int dst = this.getIndex(dstId);
+		if (NONE == src || NONE == dst)
+		{ return false; }
+		int previousPort = this.ports.get(src, dst);
+		if (!this.connect(src, dst, srcPort))
+		{
+			if (previousPort != srcPort && this.nextHops != null)
+			{
+				for (int target = 0; target < this.switchIds.length; target++)
+				{
+					if (this.nextHops[target][src] == dst)
+					{ this.recordChange(target, src); }
+				}
+			}
+			return true;
+		}
+		if (null == this.nextHops)
+		{ return true; }
+		
+		for (int target = 0; target < this.switchIds.length; target++)
+		{
+			short[] distances = this.distances[target];
+			if (distances[dst] != UNREACHABLE
+					&& distances[dst] + 1 < distances[src])
+			{ this.shorten(target, src, dst); }
+		}
+		return true;
+	}
+	
+	/**
+	 * Remove a link, and repair the paths that used it.
+	 * @param srcId DPID of the switch the link is from
+	 * @param dstId DPID of the switch the link is to
+	 */
+	public void removeLink(long srcId, long dstId)
+	{
+		int src = this.getIndex(srcId);
+		int dst = this.getIndex(dstId);
+		if (NONE == src || NONE == dst)
+		{ return; }
+		if (!this.disconnect(src, dst) || null == this.nextHops)
+		{ return; }
+		
+		for (int target = 0; target < this.switchIds.length; target++)
+		{
+			if (this.nextHops[target][src] == dst)
+			{ this.repair(target, src); }
+		}
+	}
+	
+	/**
+	 * Remove every link to and from a switch, and repair the paths that used
+	 * them.
+	 * @param switchId DPID of the switch
+	 */
+	public void removeSwitch(long switchId)
+	{
+		int index = this.getIndex(switchId);
+		if (NONE == index)
+		{ return; }
+		while (this.outDegrees[index] > 0)
+		{
+			this.removeLink(switchId, this.switchIds[
+					this.outNeighbors[index][this.outDegrees[index] - 1]]);
+		}
+		while (this.inDegrees[index] > 0)
+		{
+			this.removeLink(this.switchIds[
+					this.inNeighbors[index][this.inDegrees[index] - 1]], switchId);
+		}
+	}
+	
+	/**
+	 * Get the switches whose next hop changed since changes were last taken,
+	 * and start recording anew.
+	 * @return the switches whose next hop changed, by index of the
+	 *         destination; null for destinations with no changes
+	 */
+	public BitSet[] takeChanges()
+	{
+		BitSet[] changes = this.changes;
+		this.changes = new BitSet[this.switchIds.length];
+		return changes;
+	}
+	
+	/**
+	 * Add a link to the adjacency arrays, or update its port.
+	 * @return false if the link was already there
+	 */
+	private boolean connect(int src, int dst, int srcPort)
+	{
+		if (src == dst)
+		{ return false; }
+		this.ports.put(src, dst, srcPort);
+		if (indexOf(this.outNeighbors[src], this.outDegrees[src], dst) >= 0)
+		{ return false; }
+		this.outNeighbors[src] = append(this.outNeighbors[src],
+				this.outDegrees[src]++, dst);
+		this.inNeighbors[dst] = append(this.inNeighbors[dst],
+				this.inDegrees[dst]++, src);
+		return true;
+	}
+	
+	/**
+	 * Remove a link from the adjacency arrays.
+	 * @return false if the link was not there
+	 */
+	private boolean disconnect(int src, int dst)
+	{
+		int outIndex = indexOf(this.outNeighbors[src], this.outDegrees[src], dst);
+		if (outIndex < 0)
+		{ return false; }
+		int inIndex = indexOf(this.inNeighbors[dst], this.inDegrees[dst], src);
+		this.ports.remove(src, dst);
+		this.outNeighbors[src][outIndex] =
+				this.outNeighbors[src][--this.outDegrees[src]];
+		this.inNeighbors[dst][inIndex] =
+				this.inNeighbors[dst][--this.inDegrees[dst]];
+		return true;
+	}
+	
+	private static int indexOf(int[] array, int length, int value)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (array[i] == value)
+			{ return i; }
+		}
+		return -1;
+	}
+	
+	private static int[] append(int[] array, int length, int value)
+	{
+		if (length == array.length)
+		{ array = Arrays.copyOf(array, length * 2); }
+		array[length] = value;
+		return array;
+	}
+	
+	/**
+	 * Record that a switch's next hop towards a destination changed.
+	 */
+	private void recordChange(int target, int index)
+	{
+		if (null == this.changes[target])
+		{ this.changes[target] = new BitSet(); }
+		this.changes[target].set(index);
+	}
+	
+	/**
+	 * Repair the tree towards a destination after a link that shortens a
+	 * switch's path was added, by searching backwards from the switch
+	 * through the switches whose paths it shortens.
+	 * @param target index of the destination
+	 * @param src index of the switch the new link is from
+	 * @param dst index of the switch the new link is to
+	 */
+	private void shorten(int target, int src, int dst)
+	{
+		short[] nextHops = this.nextHops[target].clone();
+		short[] distances = this.distances[target];
+		int[] queue = new int[this.switchIds.length];
+		int head = 0;
+		int tail = 0;
+		
+		distances[src] = (short)(distances[dst] + 1);
+		nextHops[src] = (short)dst;
+		this.recordChange(target, src);
+		queue[tail++] = src;
+		while (head < tail)
+		{
+			int current = queue[head++];
+			for (int i = 0; i < this.inDegrees[current]; i++)
+			{
+				int neighbor = this.inNeighbors[current][i];
+				if (distances[current] + 1 >= distances[neighbor])
+				{ continue; }
+				distances[neighbor] = (short)(distances[current] + 1);
+				if (nextHops[neighbor] != current)
+				{
+					nextHops[neighbor] = (short)current;
+					this.recordChange(target, neighbor);
+				}
+				queue[tail++] = neighbor;
+			}
+		}
+		this.nextHops[target] = nextHops;
+	}
+	
+	/**
+	 * Repair the tree towards a destination after a switch lost the link to
+	 * its next hop. First the switches whose distance must grow are found:
+	 * the switch, unless another neighbor is as close to the destination, and
+	 * then in order of distance each switch whose next hop must grow, unless
+	 * it too has another neighbor as close. Those switches alone are then
+	 * given new distances with Dijkstra's algorithm, starting from their
+	 * links to the rest of the tree.
+	 * @param target index of the destination
+	 * @param src index of the switch that lost its next hop
+	 */
+	private void repair(int target, int src)
+	{
+		short[] nextHops = this.nextHops[target].clone();
+		short[] distances = this.distances[target];
+		
+		// Find the switches whose distance must grow; the queue is in order
+		// of distance, so a neighbor that is one hop closer has already been
+		// classified
+		int[] queue = new int[this.switchIds.length];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = src;
+		int affectedCount = 0;
+		while (head < tail)
+		{
+			int current = queue[head++];
+			int alternative = this.findAlternative(current, distances);
+			if (alternative != NONE)
+			{
+				nextHops[current] = (short)alternative;
+				this.recordChange(target, current);
+				continue;
+			}
+			this.affected[current] = true;
+			queue[affectedCount++] = current;
+			for (int i = 0; i < this.inDegrees[current]; i++)
+			{
+				int neighbor = this.inNeighbors[current][i];
+				if (nextHops[neighbor] == current)
+				{ queue[tail++] = neighbor; }
+			}
+		}
+		
+		// Give the affected switches their shortest distance through a
+		// neighbor outside them, then spread those distances among them
+		short[] previousHops = new short[affectedCount];
+		PriorityQueue<Long> pending = new PriorityQueue<Long>();
+		for (int i = 0; i < affectedCount; i++)
+		{
+			int current = queue[i];
+			previousHops[i] = nextHops[current];
+			distances[current] = UNREACHABLE;
+			nextHops[current] = NONE;
+			for (int j = 0; j < this.outDegrees[current]; j++)
+			{
+				int neighbor = this.outNeighbors[current][j];
+				if (this.affected[neighbor]
+						|| distances[neighbor] == UNREACHABLE
+						|| distances[neighbor] + 1 >= distances[current])
+				{ continue; }
+				distances[current] = (short)(distances[neighbor] + 1);
+				nextHops[current] = (short)neighbor;
+			}
+			if (distances[current] != UNREACHABLE)
+			{ pending.add(((long)distances[current] << 32) | current); }
+		}
+		while (!pending.isEmpty())
+		{
+			long entry = pending.poll();
+			int current = (int)entry;
+			if (!this.affected[current] || (entry >>> 32) != distances[current])
+			{ continue; }
+			this.affected[current] = false;
+			for (int i = 0; i < this.inDegrees[current]; i++)
+			{
+				int neighbor = this.inNeighbors[current][i];
+				if (!this.affected[neighbor]
+						|| distances[current] + 1 >= distances[neighbor])
+				{ continue; }
+				distances[neighbor] = (short)(distances[current] + 1);
+				nextHops[neighbor] = (short)current;
+				pending.add(((long)distances[neighbor] << 32) | neighbor);
+			}
+		}
 		
+		// Record the switches whose next hop changed, including those left
+		// with no path
+		for (int i = 0; i < affectedCount; i++)
+		{
+			int current = queue[i];
+			this.affected[current] = false;
+			if (nextHops[current] != previousHops[i])
+			{ this.recordChange(target, current); }
+		}
+		this.nextHops[target] = nextHops;
 	}
 	
-	public HashMap<ArrayList<IOFSwitch>, ArrayList<IOFSwitch>> computeShortestPaths(){
-		return null;
+	/**
+	 * Find a neighbor a switch has a link to that is one hop closer to the
+	 * destination than the switch and whose distance will not grow.
+	 * @return the neighbor's index, NONE if there is none
+	 */
+	private int findAlternative(int index, short[] distances)
+	{
+		for (int i = 0; i < this.outDegrees[index]; i++)
+		{
+			int neighbor = this.outNeighbors[index][i];
+			if (!this.affected[neighbor]
+					&& distances[neighbor] + 1 == distances[index])
+			{ return neighbor; }
+		}
+		return NONE;
 	}
 }
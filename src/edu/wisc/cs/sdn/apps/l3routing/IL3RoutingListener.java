@@ -0,0 +1,13 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Receives notifications when the routes computed by L3Routing change.
+ */
+public interface IL3RoutingListener
+{
+	/**
+	 * Called after L3Routing has installed rules for new routes, because a
+	 * host or link was added, removed or moved.
+	 */
+	public void routesChanged();
+}
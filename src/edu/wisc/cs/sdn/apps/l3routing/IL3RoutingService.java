@@ -0,0 +1,23 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Lets other modules look up the routes computed by L3Routing.
+ */
+public interface IL3RoutingService extends IFloodlightService
+{
+	/**
+	 * Get the port out which a switch forwards packets to a host.
+	 * @param switchId DPID of the switch
+	 * @param hostIP the host's IP address
+	 * @return the port, null if the host or a route to it is unknown
+	 */
+	public Integer getOutPort(long switchId, int hostIP);
+	
+	/**
+	 * Register a listener to be called whenever routes change.
+	 * @param listener the listener
+	 */
+	public void addListener(IL3RoutingListener listener);
+}
@@ -2,11 +2,19 @@ package edu.wisc.cs.sdn.apps.l3routing;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMatchField;
@@ -40,7 +48,7 @@ import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.routing.Link;
 
 public class L3Routing implements IFloodlightModule, IOFSwitchListener, 
-		ILinkDiscoveryListener, IDeviceListener
+		ILinkDiscoveryListener, IDeviceListener, IL3RoutingService
 {
 	public static final String MODULE_NAME = L3Routing.class.getSimpleName();
 	
@@ -59,12 +67,32 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     // Switch table in which rules should be installed
     public static byte table;
     
+    // Whether this module's batches of messages end with a barrier request
+    private boolean batchBarrier;
+    
     // Map of hosts to devices
     private Map<IDevice,Host> knownHosts;
 	
-    private Graph graph;
+    // Switches and links, with the shortest paths between switches; null
+    // until links are discovered. Replaced whole when paths are computed
+    // from scratch, so other threads see either the old paths or the new.
+    private volatile Graph graph;
+    
+    // Threads computing shortest paths from scratch, null to compute them on
+    // the calling thread
+    private ExecutorService pathExecutor;
+    
+    // Number of tasks the destinations are split into for each thread, so
+    // threads that finish early can take more
+    private static final int PATH_TASKS_PER_THREAD = 4;
+    
+    private int pathThreads;
     
-    private HashMap<ArrayList<IOFSwitch>, IOFSwitch> shortestPaths;
+    // Copy of the rules installed in each switch's table, by switch DPID
+    private ConcurrentHashMap<Long,ShadowTable> shadowTables;
+    
+    // Modules to notify when routes change
+    private List<IL3RoutingListener> routingListeners;
     
     public boolean DEBUG = false;
     
@@ -78,6 +106,26 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		log.info(String.format("Initializing %s...", MODULE_NAME));
 		Map<String,String> config = context.getConfigParams(this);
         table = Byte.parseByte(config.get("table"));
+        this.batchBarrier = Boolean.parseBoolean(config.get("batchBarrier"));
+        this.pathThreads = 1;
+        if (config.containsKey("pathThreads"))
+        { this.pathThreads = Integer.parseInt(config.get("pathThreads")); }
+        if (this.pathThreads > 1)
+        {
+        	final AtomicInteger threadCount = new AtomicInteger();
+        	this.pathExecutor = Executors.newFixedThreadPool(this.pathThreads,
+        			new ThreadFactory()
+        			{
+        				@Override
+        				public Thread newThread(Runnable runnable)
+        				{
+        					Thread thread = new Thread(runnable, MODULE_NAME
+        							+ "-paths-" + threadCount.getAndIncrement());
+        					thread.setDaemon(true);
+        					return thread;
+        				}
+        			});
+        }
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
@@ -85,132 +133,258 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
         
         this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
+        this.routingListeners = new CopyOnWriteArrayList<IL3RoutingListener>();
+        this.shadowTables = new ConcurrentHashMap<Long,ShadowTable>();
 	}
 
-	public HashMap<ArrayList<IOFSwitch>, IOFSwitch> computeShortestPaths(){
+	/**
+	 * Compute shortest paths from scratch, on a snapshot of the switches and
+	 * links, using the path threads if there are any.
+	 */
+	public Graph computeShortestPaths(){
+		Graph graph = new Graph(getSwitches().keySet(), getLinks());
+		if(null == pathExecutor)
+			graph.computeShortestPaths();
+		else
+			graph.computeShortestPaths(pathExecutor, pathThreads * PATH_TASKS_PER_THREAD);
+		return graph;
+	}
+	
+	/**
+	 * Get the port out which a switch forwards packets to a host.
+	 * @param switchId DPID of the switch
+	 * @param hostIP the host's IP address
+	 * @return the port, null if the host or a route to it is unknown
+	 */
+	@Override
+	public Integer getOutPort(long switchId, int hostIP)
+	{
+		// The switch's shadow table holds the port of the rule it was sent
+		// for the host, so there is no need to look through the hosts
+		ShadowTable shadow = this.shadowTables.get(switchId);
+		if (null == shadow)
+		{ return null; }
+		int port;
+		synchronized (shadow)
+		{ port = shadow.get(hostIP); }
+		return (ShadowTable.NONE == port ? null : port);
+	}
+	
+	/**
+	 * Register a listener to be called whenever routes change.
+	 * @param listener the listener
+	 */
+	@Override
+	public void addListener(IL3RoutingListener listener)
+	{ this.routingListeners.add(listener); }
+	
+	/**
+	 * Tell listeners that routes have changed.
+	 */
+	private void notifyRoutesChanged()
+	{
+		for (IL3RoutingListener listener : this.routingListeners)
+		{ listener.routesChanged(); }
+	}
+	
+	/**
+	 * Get the port out which a switch sends packets on a shortest path to
+	 * another switch, from the graph's index of link ports.
+	 * @return the port, Graph.NONE if there is no path or it is not known
+	 */
+	private int getNextPort(Graph graph, IOFSwitch sw, IOFSwitch dstSw){
+		if(null == graph)
+			return Graph.NONE;
+		int index = graph.getIndex(sw.getId());
+		int nextHop = graph.getNextHop(index, graph.getIndex(dstSw.getId()));
+		return graph.getPort(index, nextHop);
+	}
+	
+	/**
+	 * Build the match for packets to a host IP.
+	 */
+	private OFMatch buildHostMatch(int hostIP){
+		OFMatchField field1 = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
+		OFMatchField field2 = new OFMatchField(OFOXMFieldType.IPV4_DST, hostIP);
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(field1);
+		matchFields.add(field2);
 		
-		HashMap<ArrayList<IOFSwitch>, IOFSwitch> allPairsSuccesors = new HashMap<ArrayList<IOFSwitch>, IOFSwitch>();
-
-		for(IOFSwitch srcSw : getSwitches().values()){
-			HashMap<IOFSwitch, Integer> distances = new HashMap<IOFSwitch, Integer>();
-			HashMap<IOFSwitch, IOFSwitch> predecessors = new HashMap<IOFSwitch, IOFSwitch>();
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		return ofMatch;
+	}
+	
+	public void installRulesHost(Host host){
+		if(host.isAttachedToSwitch()){
+			IOFSwitch connectedSwitch = host.getSwitch();
+			OFMatch ofMatch = buildHostMatch(host.getIPv4Address());
 			
-			for(IOFSwitch dstSw : getSwitches().values()){
-				distances.put(dstSw, Integer.MAX_VALUE - 1);
-				predecessors.put(dstSw, null);
+			if(DEBUG){
+				System.out.println("***installing rules for with Host IP address: " + IPv4.fromIPv4Address(host.getIPv4Address()) + "\tConnected to switch " + connectedSwitch.getId());
+				System.out.println();
 			}
 			
-			distances.put(srcSw, 0);
-			
-			for(IOFSwitch dstSw : getSwitches().values()){
-				if(dstSw == srcSw)
-					continue;
-				
-				for(Link link: getLinks()){
-					IOFSwitch sw1 = getSwitches().get(link.getSrc());
-					IOFSwitch sw2 = getSwitches().get(link.getDst());
-					if(distances.get(sw1) + 1 < distances.get(sw2)){
-						distances.put(sw2, distances.get(sw1) + 1);
-						predecessors.put(sw2, sw1);
-					}
-
-				}
-			}
-			for(IOFSwitch dstSw : getSwitches().values()){
-				ArrayList<IOFSwitch> swTuple = new ArrayList<IOFSwitch>();
-				swTuple.add(dstSw);
-				swTuple.add(srcSw);
-				allPairsSuccesors.put(swTuple, predecessors.get(dstSw));
+			Graph graph = this.graph;
+			for(IOFSwitch sw : getSwitches().values()){
+				installRuleHost(host, ofMatch, sw, graph);
 			}
-			
 		}
-		return allPairsSuccesors;
 	}
 	
-	public int getConnectedPort(IOFSwitch sw1, IOFSwitch sw2){
-		for(Link link : getLinks()){
-			if((sw1.getId() == link.getSrc()) &&
-					(sw2.getId() == link.getDst())){
-				return link.getSrcPort();
-			}
+	/**
+	 * Install the rule forwarding packets to a host on one switch, or remove
+	 * it if the switch has no path to the host.
+	 */
+	private void installRuleHost(Host host, OFMatch ofMatch, IOFSwitch sw, Graph graph){
+		IOFSwitch connectedSwitch = host.getSwitch();
+		int port;
 
-			if((sw2.getId() == link.getSrc()) &&
-					(sw1.getId() == link.getDst())){
-				return link.getDstPort();
+		if(sw.getId() != connectedSwitch.getId()){
+			port = getNextPort(graph, sw, connectedSwitch);
+			if(Graph.NONE == port){
+				updateRule(sw, host.getIPv4Address(), ofMatch, ShadowTable.NONE);
+				return;
+			}
+			if(DEBUG){
+				System.out.println("***Host " + host.getName() + "\tInstalling for switch " + sw.getId() + "\tOut port " + port);
 			}
 		}
+		else{
+			port = host.getPort();
+		}
 		
-		return 0;
+		updateRule(sw, host.getIPv4Address(), ofMatch, port);
 	}
 	
-	public void installRulesHost(Host host){
-		if(host.isAttachedToSwitch()){
-			IOFSwitch connectedSwitch = host.getSwitch();
+	/**
+	 * Get the copy of the rules installed in a switch's table, creating an
+	 * empty one if there is none.
+	 */
+	private ShadowTable getShadowTable(long switchId){
+		ShadowTable shadow = shadowTables.get(switchId);
+		if(null == shadow){
+			shadowTables.putIfAbsent(switchId, new ShadowTable());
+			shadow = shadowTables.get(switchId);
+		}
+		return shadow;
+	}
+	
+	/**
+	 * Bring a switch's rule for packets to a host IP in line with the port
+	 * they should be sent out of, sending an add, modify or delete only if
+	 * the rule differs from the switch's shadow table.
+	 * @param port the port, ShadowTable.NONE if the switch should have no rule
+	 */
+	private void updateRule(IOFSwitch sw, int hostIP, OFMatch ofMatch, int port){
+		ShadowTable shadow = getShadowTable(sw.getId());
+		synchronized(shadow){
+			int installedPort = shadow.get(hostIP);
+			if(installedPort == port)
+				return;
 			
-			OFMatchField field1 = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
-			OFMatchField field2 = new OFMatchField(OFOXMFieldType.IPV4_DST, host.getIPv4Address());
-			ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
-			matchFields.add(field1);
-			matchFields.add(field2);
+			if(ShadowTable.NONE == port){
+				SwitchCommands.removeRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatch);
+				shadow.remove(hostIP);
+				return;
+			}
 			
-			OFMatch ofMatch = new OFMatch();
-			ofMatch.setMatchFields(matchFields);
+			OFActionOutput ofActionOutput = new OFActionOutput();
+			ofActionOutput.setPort(port);
+			ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
+			ofActions.add(ofActionOutput);
 			
-			if(DEBUG){
-				System.out.println("***installing rules for with Host IP address: " + IPv4.fromIPv4Address(host.getIPv4Address()) + "\tConnected to switch " + connectedSwitch.getId());
-				System.out.println();
-			}
+			OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
+			ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+			listOfInstructions.add(applyActions);
 			
-			for(IOFSwitch sw : getSwitches().values()){
-				ArrayList<IOFSwitch> switchTuple = new ArrayList<IOFSwitch>();
-				switchTuple.add(sw);
-				switchTuple.add(connectedSwitch);
-				
-				OFActionOutput ofActionOutput = new OFActionOutput();
-
-				if(sw.getId() != connectedSwitch.getId()){
-					IOFSwitch nextSwitch = shortestPaths.get(switchTuple);
-					ofActionOutput.setPort(getConnectedPort(sw, nextSwitch));
-					if(DEBUG){
-						System.out.println("***Host " + host.getName() + "\tInstalling for switch " + sw.getId() + "\tNext switch in path " + nextSwitch.getId());
-					}
-				}
-				else{
-					ofActionOutput.setPort(host.getPort());
-				}
-				
-				ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
-				ofActions.add(ofActionOutput);
-				
-				OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
-				ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
-				listOfInstructions.add(applyActions);
-				
+			if(ShadowTable.NONE == installedPort)
 				SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatch, listOfInstructions);
-			}
+			else
+				SwitchCommands.modifyRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatch, listOfInstructions);
+			shadow.put(hostIP, port);
 		}
 	}
 	
 	public void removeRulesHost(Host host){
-		OFMatchField field1 = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
-		OFMatchField field2 = new OFMatchField(OFOXMFieldType.IPV4_DST, host.getIPv4Address());
-		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
-		matchFields.add(field1);
-		matchFields.add(field2);
-		
-		OFMatch ofMatch = new OFMatch();
-		ofMatch.setMatchFields(matchFields);
-		
+		OFMatch ofMatch = buildHostMatch(host.getIPv4Address());
 		for(IOFSwitch sw : getSwitches().values()){
-			SwitchCommands.removeRules(sw, table, ofMatch);
+			updateRule(sw, host.getIPv4Address(), ofMatch, ShadowTable.NONE);
 		}
 	}
 	
 	public void installRulesAll(){
+		Set<Integer> hostIPs = new HashSet<Integer>();
 		for(Host host : getHosts()){
 			installRulesHost(host);
+			if(host.isAttachedToSwitch())
+				hostIPs.add(host.getIPv4Address());
+		}
+		
+		// Remove rules for host IPs no known host has any more
+		for(IOFSwitch sw : getSwitches().values()){
+			int[] installedIPs;
+			ShadowTable shadow = getShadowTable(sw.getId());
+			synchronized(shadow){
+				installedIPs = shadow.getAddresses();
+			}
+			for(int hostIP : installedIPs){
+				if(hostIPs.contains(hostIP))
+					continue;
+				updateRule(sw, hostIP, buildHostMatch(hostIP), ShadowTable.NONE);
+			}
+		}
+	}
+	
+	/**
+	 * Apply link changes to the shortest paths in place, and rewrite only the
+	 * rules of switches whose next hop towards a host's switch changed.
+	 * @param updateList the link changes
+	 * @return false if the paths must be computed from scratch instead,
+	 *         because they have not been computed yet or a switch is new
+	 */
+	private boolean updateShortestPaths(List<LDUpdate> updateList){
+		Graph graph = this.graph;
+		if(null == graph)
+			return false;
+		for(long switchId : getSwitches().keySet()){
+			if(Graph.NONE == graph.getIndex(switchId))
+				return false;
 		}
 		
+		for(LDUpdate update : updateList){
+			switch(update.getOperation()){
+			case LINK_UPDATED:
+				// Links to hosts have no switch at the far end
+				if(0 != update.getDst() && !graph.addLink(update.getSrc(), update.getSrcPort(), update.getDst()))
+					return false;
+				break;
+			case LINK_REMOVED:
+				graph.removeLink(update.getSrc(), update.getDst());
+				break;
+			case SWITCH_REMOVED:
+				graph.removeSwitch(update.getSrc());
+				break;
+			default:
+				break;
+			}
+		}
+		
+		BitSet[] changes = graph.takeChanges();
+		for(Host host : getHosts()){
+			if(!host.isAttachedToSwitch())
+				continue;
+			int dst = graph.getIndex(host.getSwitch().getId());
+			if(Graph.NONE == dst || null == changes[dst])
+				continue;
+			OFMatch ofMatch = buildHostMatch(host.getIPv4Address());
+			for(int i = changes[dst].nextSetBit(0); i >= 0; i = changes[dst].nextSetBit(i + 1)){
+				IOFSwitch sw = getSwitches().get(graph.getSwitchId(i));
+				if(null != sw)
+					installRuleHost(host, ofMatch, sw, graph);
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -269,7 +443,14 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			/*****************************************************************/
 			if(DEBUG)
 				System.out.println("***Device Added : "+host.getName());
-			installRulesHost(host);
+			SwitchCommands.beginBatch(batchBarrier);
+			try {
+				installRulesHost(host);
+			}
+			finally {
+				SwitchCommands.endBatch();
+			}
+			notifyRoutesChanged();
 		}
 	}
 
@@ -292,7 +473,14 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		/* TODO: Update routing: remove rules to route to host               */
 		
 		/*********************************************************************/
-		removeRulesHost(host);
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			removeRulesHost(host);
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+		notifyRoutesChanged();
 	}
 
 	/**
@@ -323,8 +511,15 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		/*********************************************************************/
 		if(DEBUG)
 			System.out.println("***Device Moved : "+host.getName());
-		removeRulesHost(host);
-		installRulesHost(host);
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			// Only switches whose port towards the host changed get new rules
+			installRulesHost(host);
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+		notifyRoutesChanged();
 	}
 	
     /**
@@ -340,7 +535,22 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
 		/*********************************************************************/
-		
+		// Floodlight clears a switch's tables when it connects, so a switch
+		// that reconnects needs all of its rules again
+		this.shadowTables.put(switchId, new ShadowTable());
+		if(null == sw)
+			return;
+		Graph graph = this.graph;
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			for(Host host : getHosts()){
+				if(host.isAttachedToSwitch())
+					installRuleHost(host, buildHostMatch(host.getIPv4Address()), sw, graph);
+			}
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
 	}
 
 	/**
@@ -357,6 +567,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		/* TODO: Update routing: change routing rules for all hosts          */
 		
 		/*********************************************************************/
+		this.shadowTables.remove(switchId);
 	}
 
 	/**
@@ -389,12 +600,21 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		/* TODO: Update routing: change routing rules for all hosts          */
 		
 		/*********************************************************************/
-		if(DEBUG)
-			System.out.println("***Computing the shortest paths after link discovery");
-		shortestPaths = computeShortestPaths();
-		if(DEBUG)
-			System.out.println("***Installing rules");
-		installRulesAll();
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			if(!updateShortestPaths(updateList)){
+				if(DEBUG)
+					System.out.println("***Computing the shortest paths after link discovery");
+				this.graph = computeShortestPaths();
+				if(DEBUG)
+					System.out.println("***Installing rules");
+				installRulesAll();
+			}
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+		notifyRoutesChanged();
 	}
 
 	/**
@@ -478,7 +698,12 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IL3RoutingService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -486,7 +711,12 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, IFloodlightService>();
+		services.put(IL3RoutingService.class, this);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -0,0 +1,135 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Index of the port out which each switch reaches each of its neighbors,
+ * keyed by the pair of switch indexes in a Graph. The index is kept in
+ * primitive arrays using open addressing with linear probing, so finding a
+ * port takes constant time and never touches the links themselves. Ports
+ * may be read while links change.
+ */
+public class LinkPorts
+{
+	// Port of a pair of switches with no link
+	public static final int NONE = -1;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	// Index of the switch a link is from in the upper 32 bits, and of the
+	// switch it is to in the lower 32 bits; 0 if the slot is empty, which
+	// no link can use since a switch has no link to itself
+	private long[] keys;
+	
+	// Port of the link in the same slot on the switch it is from
+	private int[] ports;
+	
+	// Number of links in the index
+	private int size;
+	
+	/**
+	 * Create an empty index.
+	 */
+	public LinkPorts()
+	{
+		this.keys = new long[INITIAL_CAPACITY];
+		this.ports = new int[INITIAL_CAPACITY];
+		this.size = 0;
+	}
+	
+	private static long key(int src, int dst)
+	{ return ((long)src << 32) | (dst & 0xffffffffL); }
+	
+	private static int hash(long key)
+	{
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	/**
+	 * Find the slot holding a link, or the empty slot where it belongs.
+	 */
+	private int find(long key)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.keys[slot] != 0 && this.keys[slot] != key)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+	
+	/**
+	 * Get the port out which a switch reaches a neighbor.
+	 * @param src index of the switch
+	 * @param dst index of the neighbor
+	 * @return the port, NONE if there is no link from the switch to the
+	 *         neighbor
+	 */
+	public synchronized int get(int src, int dst)
+	{
+		int slot = this.find(key(src, dst));
+		return (0 == this.keys[slot] ? NONE : this.ports[slot]);
+	}
+	
+	/**
+	 * Record the port out which a switch reaches a neighbor.
+	 * @param src index of the switch
+	 * @param dst index of the neighbor
+	 * @param port the port on the switch
+	 */
+	public synchronized void put(int src, int dst, int port)
+	{
+		if ((this.size + 1) * 4L > this.keys.length * 3L)
+		{ this.resize(this.keys.length * 2); }
+		long key = key(src, dst);
+		int slot = this.find(key);
+		if (0 == this.keys[slot])
+		{ this.size++; }
+		this.keys[slot] = key;
+		this.ports[slot] = port;
+	}
+	
+	/**
+	 * Forget the link from a switch to a neighbor.
+	 * @param src index of the switch
+	 * @param dst index of the neighbor
+	 */
+	public synchronized void remove(int src, int dst)
+	{
+		int mask = this.keys.length - 1;
+		int slot = this.find(key(src, dst));
+		if (0 == this.keys[slot])
+		{ return; }
+		this.size--;
+		
+		// Move back the entries after the slot that would no longer be found
+		int next = (slot + 1) & mask;
+		while (this.keys[next] != 0)
+		{
+			int home = hash(this.keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask))
+			{
+				this.keys[slot] = this.keys[next];
+				this.ports[slot] = this.ports[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.keys[slot] = 0;
+		this.ports[slot] = 0;
+	}
+	
+	private void resize(int capacity)
+	{
+		long[] oldKeys = this.keys;
+		int[] oldPorts = this.ports;
+		this.keys = new long[capacity];
+		this.ports = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (0 == oldKeys[i])
+			{ continue; }
+			int slot = this.find(oldKeys[i]);
+			this.keys[slot] = oldKeys[i];
+			this.ports[slot] = oldPorts[i];
+		}
+	}
+}
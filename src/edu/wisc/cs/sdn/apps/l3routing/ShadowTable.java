@@ -0,0 +1,140 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Copy of the rules L3Routing has installed in one switch's table: the port
+ * out which packets to each host IP are sent. Rules are only sent to the
+ * switch when they differ from the copy. The copy is kept in primitive
+ * arrays using open addressing with linear probing. Callers must hold the
+ * table's lock.
+ */
+public class ShadowTable
+{
+	// Port of a host IP with no rule
+	public static final int NONE = -1;
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	// Host IPs; 0 if the slot is empty
+	private int[] addresses;
+	
+	// Port out which packets to the host IP in the same slot are sent
+	private int[] ports;
+	
+	// Number of rules in the table
+	private int size;
+	
+	/**
+	 * Create an empty table.
+	 */
+	public ShadowTable()
+	{
+		this.addresses = new int[INITIAL_CAPACITY];
+		this.ports = new int[INITIAL_CAPACITY];
+		this.size = 0;
+	}
+	
+	private static int hash(int address)
+	{
+		int h = address * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Find the slot holding a host IP, or the empty slot where it belongs.
+	 */
+	private int find(int address)
+	{
+		int mask = this.addresses.length - 1;
+		int slot = hash(address) & mask;
+		while (this.addresses[slot] != 0 && this.addresses[slot] != address)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+	
+	/**
+	 * Get the port out which the switch sends packets to a host IP.
+	 * @param address the host IP
+	 * @return the port, NONE if the switch has no rule for the host IP
+	 */
+	public int get(int address)
+	{
+		int slot = this.find(address);
+		return (0 == this.addresses[slot] ? NONE : this.ports[slot]);
+	}
+	
+	/**
+	 * Record the port out which the switch sends packets to a host IP.
+	 * @param address the host IP
+	 * @param port the port
+	 */
+	public void put(int address, int port)
+	{
+		if ((this.size + 1) * 4L > this.addresses.length * 3L)
+		{ this.resize(this.addresses.length * 2); }
+		int slot = this.find(address);
+		if (0 == this.addresses[slot])
+		{ this.size++; }
+		this.addresses[slot] = address;
+		this.ports[slot] = port;
+	}
+	
+	/**
+	 * Record that the switch has no rule for a host IP.
+	 * @param address the host IP
+	 */
+	public void remove(int address)
+	{
+		int mask = this.addresses.length - 1;
+		int slot = this.find(address);
+		if (0 == this.addresses[slot])
+		{ return; }
+		this.size--;
+		
+		// Move back the entries after the slot that would no longer be found
+		int next = (slot + 1) & mask;
+		while (this.addresses[next] != 0)
+		{
+			int home = hash(this.addresses[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask))
+			{
+				this.addresses[slot] = this.addresses[next];
+				this.ports[slot] = this.ports[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.addresses[slot] = 0;
+		this.ports[slot] = 0;
+	}
+	
+	/**
+	 * Get the host IPs the switch has rules for.
+	 */
+	public int[] getAddresses()
+	{
+		int[] addresses = new int[this.size];
+		int count = 0;
+		for (int address : this.addresses)
+		{
+			if (address != 0)
+			{ addresses[count++] = address; }
+		}
+		return addresses;
+	}
+	
+	private void resize(int capacity)
+	{
+		int[] oldAddresses = this.addresses;
+		int[] oldPorts = this.ports;
+		this.addresses = new int[capacity];
+		this.ports = new int[capacity];
+		for (int i = 0; i < oldAddresses.length; i++)
+		{
+			if (0 == oldAddresses[i])
+			{ continue; }
+			int slot = this.find(oldAddresses[i]);
+			this.addresses[slot] = oldAddresses[i];
+			this.ports[slot] = oldPorts[i];
+		}
+	}
+}
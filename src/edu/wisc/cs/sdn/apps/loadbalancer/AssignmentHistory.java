@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Record of the hosts connections were assigned to after their rules
+ * expired, so a connection that was only idle can be put back on its host
+ * when its next packet reaches the controller. Records live in a fixed-size
+ * table outside the Java heap, so even millions of them add nothing to
+ * garbage collection. Each record is stamped with the generation it was
+ * written in; the generation advances with time, and records from more than
+ * GENERATIONS generations ago are treated as empty. A connection's record
+ * is in one of a few slots after its hash, and when those are all taken the
+ * oldest is overwritten, so the table never needs to be cleaned up.
+ */
+public class AssignmentHistory
+{
+	// Generations for which a record lives
+	private static final int GENERATIONS = 4;
+	
+	// Slots after a connection's hash in which its record may be
+	private static final int PROBES = 8;
+	
+	// Layout of a slot: client IP in the upper 32 bits and virtual IP in the
+	// lower 32 bits of a long, 0 if the slot is empty; client port in the
+	// upper 16 bits and virtual port in the lower 16 bits of an int; the IP
+	// of the host; and the generation the record was written in
+	private static final int ADDRESSES_OFFSET = 0;
+	private static final int PORTS_OFFSET = 8;
+	private static final int HOST_OFFSET = 12;
+	private static final int GENERATION_OFFSET = 16;
+	private static final int SLOT_SIZE = 24;
+	
+	// Slots of the table
+	private final ByteBuffer slots;
+	
+	// Number of slots; a power of 2
+	private final int capacity;
+	
+	// Length of a generation in milliseconds
+	private final long generationMillis;
+	
+	/**
+	 * Create an empty history.
+	 * @param capacity the least number of records the table should hold
+	 * @param timeoutMillis the least time, in milliseconds, for which a
+	 *         record is kept if it is not overwritten
+	 */
+	public AssignmentHistory(int capacity, long timeoutMillis)
+	{
+		int slotCount = PROBES;
+		while (slotCount < capacity)
+		{ slotCount *= 2; }
+		this.capacity = slotCount;
+		this.slots = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+		this.generationMillis = Math.max(1, (timeoutMillis + GENERATIONS - 2)
+				/ (GENERATIONS - 1));
+	}
+	
+	private static long addressKey(int clientIP, int virtualIP)
+	{ return ((long)clientIP << 32) | (virtualIP & 0xffffffffL); }
+	
+	private static int portKey(short clientPort, short virtualPort)
+	{ return ((clientPort & 0xffff) << 16) | (virtualPort & 0xffff); }
+	
+	private static int hash(long addresses, int ports)
+	{
+		long h = addresses * 0x9e3779b97f4a7c15L ^ ports;
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	private int currentGeneration()
+	{ return (int)(System.currentTimeMillis() / this.generationMillis); }
+	
+	private boolean isLive(int offset, int generation)
+	{
+		return (this.slots.getLong(offset + ADDRESSES_OFFSET) != 0
+				&& generation - this.slots.getInt(offset + GENERATION_OFFSET)
+					< GENERATIONS);
+	}
+	
+	/**
+	 * Record the host a connection was assigned to.
+	 * @param clientIP the client's IP address
+	 * @param virtualIP the virtual IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @param hostIP the IP address of the host
+	 */
+	public synchronized void put(int clientIP, int virtualIP, short clientPort,
+			short virtualPort, int hostIP)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		int portKey = portKey(clientPort, virtualPort);
+		int generation = this.currentGeneration();
+		int start = hash(addressKey, portKey);
+		
+		// Use the connection's own slot if it has one, otherwise the first
+		// free slot, otherwise the oldest
+		int target = -1;
+		int targetAge = -1;
+		for (int i = 0; i < PROBES; i++)
+		{
+			int offset = ((start + i) & (this.capacity - 1)) * SLOT_SIZE;
+			if (this.slots.getLong(offset + ADDRESSES_OFFSET) == addressKey
+					&& this.slots.getInt(offset + PORTS_OFFSET) == portKey)
+			{
+				target = offset;
+				break;
+			}
+			int age = (this.isLive(offset, generation)
+					? generation - this.slots.getInt(offset + GENERATION_OFFSET)
+					: Integer.MAX_VALUE);
+			if (age > targetAge)
+			{
+				target = offset;
+				targetAge = age;
+			}
+		}
+		
+		this.slots.putLong(target + ADDRESSES_OFFSET, addressKey);
+		this.slots.putInt(target + PORTS_OFFSET, portKey);
+		this.slots.putInt(target + HOST_OFFSET, hostIP);
+		this.slots.putInt(target + GENERATION_OFFSET, generation);
+	}
+	
+	/**
+	 * Get the host a connection was assigned to.
+	 * @param clientIP the client's IP address
+	 * @param virtualIP the virtual IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @return the IP address of the host, 0 if there is no live record of
+	 *         the connection
+	 */
+	public synchronized int get(int clientIP, int virtualIP, short clientPort,
+			short virtualPort)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		int portKey = portKey(clientPort, virtualPort);
+		int generation = this.currentGeneration();
+		int start = hash(addressKey, portKey);
+		for (int i = 0; i < PROBES; i++)
+		{
+			int offset = ((start + i) & (this.capacity - 1)) * SLOT_SIZE;
+			if (this.slots.getLong(offset + ADDRESSES_OFFSET) == addressKey
+					&& this.slots.getInt(offset + PORTS_OFFSET) == portKey)
+			{
+				return (this.isLive(offset, generation)
+						? this.slots.getInt(offset + HOST_OFFSET) : 0);
+			}
+		}
+		return 0;
+	}
+}
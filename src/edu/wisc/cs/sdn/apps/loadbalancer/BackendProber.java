@@ -0,0 +1,18 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+/**
+ * Checks whether the hosts of load balancer instances accept connections.
+ */
+public interface BackendProber
+{
+	/**
+	 * Start a check of a host. The outcome is reported to the health checker
+	 * with reportResult(), either before this returns or later; a check with
+	 * no outcome by the next round of checks counts as failed.
+	 * @param checker the health checker to report the outcome to
+	 * @param instance the load balancer instance
+	 * @param hostIndex the index of the host within the instance
+	 */
+	public void probe(HealthChecker checker, LoadBalancerInstance instance,
+			int hostIndex);
+}
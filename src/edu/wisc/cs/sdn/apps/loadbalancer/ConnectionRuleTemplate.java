@@ -0,0 +1,234 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMatchField;
+import org.openflow.protocol.OFOXMFieldType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionSetField;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.instruction.OFInstructionGotoTable;
+
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * A precompiled connection-specific rule. Everything except the addresses
+ * and ports of the connection is built once, so installing a rule for a new
+ * connection only allocates the flow-mod and its match. Rules can also match
+ * all connections between two addresses on one virtual port, for source
+ * affinity.
+ */
+public class ConnectionRuleTemplate
+{
+	// Cookies identifying rules built from forward and reverse templates
+	public static final long FORWARD_COOKIE = 0x4c42000000000001L;
+	public static final long REVERSE_COOKIE = 0x4c42000000000002L;
+	
+	// Match fields that are the same for every connection
+	private static final OFMatchField MATCH_ETH_TYPE =
+			new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
+	private static final OFMatchField MATCH_IP_PROTO =
+			new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP);
+
+	// Table in which the rule is installed
+	private final byte table;
+
+	// Priority of the rule
+	private final short priority;
+
+	// Idle timeout of the rule
+	private final short idleTimeout;
+
+	// Instructions shared by every rule built from this template
+	private final List<OFInstruction> instructions;
+
+	// Length of a flow-mod built from this template
+	private final short length;
+
+	// MAC address the rule rewrites to, 0 if none
+	private final long rewriteMAC;
+	
+	// Port out which the rule sends packets, 0 if it sends them to the next
+	// table instead
+	private final int outPort;
+	
+	// Cookie of the rule
+	private final long cookie;
+	
+	// Flags of the rule
+	private final short flags;
+
+	private ConnectionRuleTemplate(byte table, short priority,
+			short idleTimeout, List<OFAction> actions, byte nextTable,
+			long rewriteMAC, long cookie, short flags)
+	{ 
+		this(table, priority, idleTimeout, actions, nextTable, 0, rewriteMAC,
+				cookie, flags); 
+	}
+	
+	private ConnectionRuleTemplate(byte table, short priority,
+			short idleTimeout, List<OFAction> actions, byte nextTable,
+			int outPort, long rewriteMAC, long cookie, short flags)
+	{
+		this.table = table;
+		this.cookie = cookie;
+		this.flags = flags;
+		this.priority = priority;
+		this.idleTimeout = idleTimeout;
+		this.rewriteMAC = rewriteMAC;
+		this.outPort = outPort;
+
+		List<OFInstruction> instructions = new ArrayList<OFInstruction>();
+		if (outPort != 0)
+		{
+			actions.add(new OFActionOutput(outPort));
+			instructions.add(new OFInstructionApplyActions(actions));
+		}
+		else
+		{
+			instructions.add(new OFInstructionApplyActions(actions));
+			OFInstructionGotoTable gotoTable = new OFInstructionGotoTable();
+			gotoTable.setTableId(nextTable);
+			instructions.add(gotoTable);
+		}
+		this.instructions = Collections.unmodifiableList(instructions);
+
+		int length = OFFlowMod.MINIMUM_LENGTH;
+		for (OFInstruction instruction : instructions)
+		{ length += instruction.getLengthU(); }
+		this.length = (short)length;
+	}
+
+	/**
+	 * Create a template for rules that send a client's packets to a host.
+	 * The switch reports when these rules are removed.
+	 * @param table the table in which rules should be installed
+	 * @param priority the priority of the rules
+	 * @param idleTimeout the idle timeout of the rules
+	 * @param nextTable the table to which rewritten packets are sent
+	 * @param hostIP the IP address of the host
+	 * @param hostMAC the MAC address of the host
+	 */
+	public static ConnectionRuleTemplate forward(byte table, short priority,
+			short idleTimeout, byte nextTable, int hostIP, long hostMAC)
+	{
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(new OFActionSetField(OFOXMFieldType.ETH_DST,
+				MACAddress.valueOf(hostMAC).toBytes()));
+		actions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP));
+		return new ConnectionRuleTemplate(table, priority, idleTimeout,
+				actions, nextTable, hostMAC, FORWARD_COOKIE,
+				OFFlowMod.OFPFF_SEND_FLOW_REM);
+	}
+
+	/**
+	 * Create a template for rules that send a client's packets to a host
+	 * that has the virtual IP as well as its own, for direct server return:
+	 * only the destination MAC address is rewritten, and packets are sent
+	 * straight out a port, since routes only lead to hosts' own IPs. The
+	 * switch reports when these rules are removed.
+	 * @param table the table in which rules should be installed
+	 * @param priority the priority of the rules
+	 * @param idleTimeout the idle timeout of the rules
+	 * @param hostMAC the MAC address of the host
+	 * @param outPort the port out which the switch reaches the host
+	 */
+	public static ConnectionRuleTemplate direct(byte table, short priority,
+			short idleTimeout, long hostMAC, int outPort)
+	{
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(new OFActionSetField(OFOXMFieldType.ETH_DST,
+				MACAddress.valueOf(hostMAC).toBytes()));
+		return new ConnectionRuleTemplate(table, priority, idleTimeout,
+				actions, (byte)0, outPort, hostMAC, FORWARD_COOKIE,
+				OFFlowMod.OFPFF_SEND_FLOW_REM);
+	}
+
+	/**
+	 * Create a template for rules that make a host's replies to a client
+	 * appear to come from a virtual IP.
+	 * @param table the table in which rules should be installed
+	 * @param priority the priority of the rules
+	 * @param idleTimeout the idle timeout of the rules
+	 * @param nextTable the table to which rewritten packets are sent
+	 * @param virtualIP the virtual IP address
+	 * @param virtualMAC the virtual MAC address
+	 */
+	public static ConnectionRuleTemplate reverse(byte table, short priority,
+			short idleTimeout, byte nextTable, int virtualIP,
+			byte[] virtualMAC)
+	{
+		List<OFAction> actions = new ArrayList<OFAction>();
+		actions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, virtualMAC));
+		actions.add(new OFActionSetField(OFOXMFieldType.IPV4_SRC, virtualIP));
+		return new ConnectionRuleTemplate(table, priority, idleTimeout,
+				actions, nextTable, MACAddress.valueOf(virtualMAC).toLong(),
+				REVERSE_COOKIE, (short)0);
+	}
+
+	/**
+	 * Get the MAC address rules built from this template rewrite to.
+	 */
+	public long getRewriteMAC()
+	{ return this.rewriteMAC; }
+
+	/**
+	 * Get the port out which rules built from this template send packets.
+	 * @return the port, 0 if they send packets to the next table
+	 */
+	public int getOutPort()
+	{ return this.outPort; }
+
+	/**
+	 * Build a rule for a specific TCP connection, or for all connections
+	 * between two addresses to or from one port if the other port is 0.
+	 * @param srcIP the source IP address to match
+	 * @param dstIP the destination IP address to match
+	 * @param srcPort the source TCP port to match, 0 for any
+	 * @param dstPort the destination TCP port to match, 0 for any
+	 * @param bufferId the buffered packet to which the rule should be applied
+	 * @return the rule
+	 */
+	public OFFlowMod build(int srcIP, int dstIP, int srcPort, int dstPort,
+			int bufferId)
+	{
+		List<OFMatchField> matchFields = new ArrayList<OFMatchField>(6);
+		matchFields.add(MATCH_ETH_TYPE);
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_SRC, srcIP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, dstIP));
+		matchFields.add(MATCH_IP_PROTO);
+		if (srcPort != 0)
+		{ matchFields.add(new OFMatchField(OFOXMFieldType.TCP_SRC, srcPort)); }
+		if (dstPort != 0)
+		{ matchFields.add(new OFMatchField(OFOXMFieldType.TCP_DST, dstPort)); }
+		return this.build(matchFields, bufferId);
+	}
+
+	private OFFlowMod build(List<OFMatchField> matchFields, int bufferId)
+	{
+		OFMatch match = new OFMatch();
+		match.setMatchFields(matchFields);
+
+		OFFlowMod rule = new OFFlowMod();
+		rule.setHardTimeout(SwitchCommands.NO_TIMEOUT);
+		rule.setIdleTimeout(this.idleTimeout);
+		rule.setPriority(this.priority);
+		rule.setTableId(this.table);
+		rule.setBufferId(bufferId);
+		rule.setCookie(this.cookie);
+		rule.setFlags(this.flags);
+		rule.setMatch(match);
+		rule.setInstructions(this.instructions);
+		rule.setLength(this.length);
+		return rule;
+	}
+}
@@ -0,0 +1,267 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+/**
+ * Table of the TCP connections to virtual IPs for which rules are installed,
+ * mapping each connection to the host it was assigned to. Connections are
+ * stored in primitive arrays using open addressing with linear probing, at
+ * 16 bytes per slot. The table grows by doubling, but never holds more than
+ * a fixed number of connections; connections beyond that are not tracked.
+ * The table is split into segments, each with its own lock, so threads
+ * handling different connections rarely wait for each other.
+ */
+public class ConnectionTable
+{
+	// Returned by put() when the connection could not be added because the
+	// table was full; no host has this IP, the broadcast address
+	public static final int FULL = -1;
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	// Number of segments; a power of 2
+	private static final int SEGMENT_BITS = 4;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	
+	/**
+	 * A part of the table, holding the connections whose hash starts with
+	 * the segment's index.
+	 */
+	private static class Segment
+	{
+		// Client IP in the upper 32 bits and virtual IP in the lower 32 bits;
+		// 0 if the slot is empty
+		private long[] addresses;
+		
+		// Client port in bits 48-63, virtual port in bits 32-47, and the IP of
+		// the assigned host in the lower 32 bits
+		private long[] portsAndHosts;
+		
+		// Number of connections in the segment
+		private int size;
+		
+		// Maximum number of connections in the segment
+		private final int maxSize;
+		
+		// Number of connections that could not be added because the segment
+		// was full
+		private long overflows;
+		
+		private Segment(int maxSize)
+		{
+			this.maxSize = maxSize;
+			this.addresses = new long[INITIAL_CAPACITY];
+			this.portsAndHosts = new long[INITIAL_CAPACITY];
+			this.size = 0;
+			this.overflows = 0;
+		}
+		
+		private synchronized int put(long addressKey, long portKey, int hostIP)
+		{
+			int slot = this.find(addressKey, portKey);
+			if (this.addresses[slot] != 0)
+			{
+				int previous = (int)this.portsAndHosts[slot];
+				this.portsAndHosts[slot] = portKey | (hostIP & 0xffffffffL);
+				return previous;
+			}
+			
+			if (this.size >= this.maxSize)
+			{
+				this.overflows++;
+				return FULL;
+			}
+			if ((this.size + 1) * 4L > this.addresses.length * 3L)
+			{
+				this.resize(this.addresses.length * 2);
+				slot = this.find(addressKey, portKey);
+			}
+			this.addresses[slot] = addressKey;
+			this.portsAndHosts[slot] = portKey | (hostIP & 0xffffffffL);
+			this.size++;
+			return 0;
+		}
+		
+		private synchronized int get(long addressKey, long portKey)
+		{
+			int slot = this.find(addressKey, portKey);
+			if (0 == this.addresses[slot])
+			{ return 0; }
+			return (int)this.portsAndHosts[slot];
+		}
+		
+		private synchronized int remove(long addressKey, long portKey)
+		{
+			int slot = this.find(addressKey, portKey);
+			if (0 == this.addresses[slot])
+			{ return 0; }
+			int hostIP = (int)this.portsAndHosts[slot];
+			
+			// Shift later entries of the probe sequence back, so lookups never
+			// need tombstones
+			int mask = this.addresses.length - 1;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (this.addresses[next] != 0)
+			{
+				int home = hash(this.addresses[next],
+						this.portsAndHosts[next] & 0xffffffff00000000L) & mask;
+				if (((next - home) & mask) >= ((next - hole) & mask))
+				{
+					this.addresses[hole] = this.addresses[next];
+					this.portsAndHosts[hole] = this.portsAndHosts[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			this.addresses[hole] = 0;
+			this.portsAndHosts[hole] = 0;
+			this.size--;
+			return hostIP;
+		}
+		
+		private synchronized int size()
+		{ return this.size; }
+		
+		private synchronized long getOverflows()
+		{ return this.overflows; }
+		
+		/**
+		 * Find the slot holding a connection, or the empty slot where it
+		 * belongs.
+		 */
+		private int find(long addressKey, long portKey)
+		{
+			int mask = this.addresses.length - 1;
+			int slot = hash(addressKey, portKey) & mask;
+			while (this.addresses[slot] != 0
+					&& (this.addresses[slot] != addressKey
+						|| (this.portsAndHosts[slot] & 0xffffffff00000000L)
+							!= portKey))
+			{ slot = (slot + 1) & mask; }
+			return slot;
+		}
+		
+		private void resize(int capacity)
+		{
+			long[] oldAddresses = this.addresses;
+			long[] oldPortsAndHosts = this.portsAndHosts;
+			this.addresses = new long[capacity];
+			this.portsAndHosts = new long[capacity];
+			for (int i = 0; i < oldAddresses.length; i++)
+			{
+				if (0 == oldAddresses[i])
+				{ continue; }
+				int slot = this.find(oldAddresses[i],
+						oldPortsAndHosts[i] & 0xffffffff00000000L);
+				this.addresses[slot] = oldAddresses[i];
+				this.portsAndHosts[slot] = oldPortsAndHosts[i];
+			}
+		}
+	}
+	
+	// Segments of the table
+	private final Segment[] segments;
+	
+	/**
+	 * Create a connection table.
+	 * @param maxSize the maximum number of connections the table may hold
+	 */
+	public ConnectionTable(int maxSize)
+	{
+		this.segments = new Segment[SEGMENTS];
+		int segmentMaxSize = (maxSize + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++)
+		{ this.segments[i] = new Segment(segmentMaxSize); }
+	}
+	
+	private static long addressKey(int clientIP, int virtualIP)
+	{ return ((long)clientIP << 32) | (virtualIP & 0xffffffffL); }
+	
+	private static long portKey(short clientPort, short virtualPort)
+	{ return ((clientPort & 0xffffL) << 48) | ((virtualPort & 0xffffL) << 32); }
+	
+	private static int hash(long addresses, long ports)
+	{
+		long h = addresses * 0x9e3779b97f4a7c15L ^ ports;
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	/**
+	 * Get the segment holding a connection; segments are picked by the top
+	 * bits of the hash, and slots within a segment by the bottom bits.
+	 */
+	private Segment segmentFor(long addressKey, long portKey)
+	{ return this.segments[hash(addressKey, portKey) >>> (32 - SEGMENT_BITS)]; }
+	
+	/**
+	 * Add a connection, or change the host of a connection already in the
+	 * table.
+	 * @param clientIP the client's IP address
+	 * @param virtualIP the virtual IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @param hostIP the IP address of the host the connection is assigned to
+	 * @return the IP of the host the connection was previously assigned to,
+	 *         0 if the connection was not in the table, FULL if it was not
+	 *         in the table and could not be added
+	 */
+	public int put(int clientIP, int virtualIP, short clientPort,
+			short virtualPort, int hostIP)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		long portKey = portKey(clientPort, virtualPort);
+		return this.segmentFor(addressKey, portKey).put(addressKey, portKey,
+				hostIP);
+	}
+	
+	/**
+	 * Get the host a connection is assigned to.
+	 * @return the IP address of the host, 0 if the connection is not in the
+	 *         table
+	 */
+	public int get(int clientIP, int virtualIP, short clientPort,
+			short virtualPort)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		long portKey = portKey(clientPort, virtualPort);
+		return this.segmentFor(addressKey, portKey).get(addressKey, portKey);
+	}
+	
+	/**
+	 * Remove a connection.
+	 * @return the IP of the host the connection was assigned to, 0 if the
+	 *         connection was not in the table
+	 */
+	public int remove(int clientIP, int virtualIP, short clientPort,
+			short virtualPort)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		long portKey = portKey(clientPort, virtualPort);
+		return this.segmentFor(addressKey, portKey).remove(addressKey,
+				portKey);
+	}
+	
+	/**
+	 * Get the number of connections in the table.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : this.segments)
+		{ size += segment.size(); }
+		return size;
+	}
+	
+	/**
+	 * Get the number of connections that were not tracked because the table
+	 * was full.
+	 */
+	public long getOverflows()
+	{
+		long overflows = 0;
+		for (Segment segment : this.segments)
+		{ overflows += segment.getOverflows(); }
+		return overflows;
+	}
+}
@@ -0,0 +1,230 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Periodically checks the hosts of load balancer instances that ask for
+ * it, and decides when each host is up or down. A host must pass several
+ * checks in a row to come up, and fail several in a row to go down, so one
+ * lost probe does not take it out of rotation.
+ */
+public class HealthChecker
+{
+	/**
+	 * Told when a host goes up or down.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when a host goes up or down.
+		 * @param instance the load balancer instance
+		 * @param hostIndex the index of the host within the instance
+		 * @param up whether the host is now up
+		 */
+		public void hostStateChanged(LoadBalancerInstance instance,
+				int hostIndex, boolean up);
+	}
+	
+	/**
+	 * State of the checks of one host.
+	 */
+	private static class Target
+	{
+		private final LoadBalancerInstance instance;
+		
+		private final int hostIndex;
+		
+		// Whether the host is considered up
+		private boolean up;
+		
+		// Number of checks in a row the host passed or failed
+		private int passes;
+		private int failures;
+		
+		// Whether a check was started and has no outcome yet
+		private boolean outstanding;
+		
+		private Target(LoadBalancerInstance instance, int hostIndex)
+		{
+			this.instance = instance;
+			this.hostIndex = hostIndex;
+			this.up = true;
+			this.passes = 0;
+			this.failures = 0;
+			this.outstanding = false;
+		}
+	}
+	
+	// Checks of each instance's hosts, by virtual IP
+	private final Map<Integer,Target[]> targets;
+	
+	// How hosts are checked
+	private final BackendProber prober;
+	
+	// Checks in a row a host must pass to come up, or fail to go down
+	private final int rise;
+	private final int fall;
+	
+	private final Listener listener;
+	
+	/**
+	 * Create a health checker. Hosts start out up.
+	 * @param instances the load balancer instances; only the hosts of those
+	 *         with a health check port are checked
+	 * @param prober how hosts are checked
+	 * @param rise checks in a row a host must pass to come up
+	 * @param fall checks in a row a host must fail to go down
+	 * @param listener told when a host goes up or down
+	 */
+	public HealthChecker(Collection<LoadBalancerInstance> instances,
+			BackendProber prober, int rise, int fall, Listener listener)
+	{
+		if (rise < 1 || fall < 1)
+		{ throw new IllegalArgumentException("Bad health check thresholds"); }
+		this.targets = new HashMap<Integer,Target[]>();
+		this.setInstances(instances);
+		this.prober = prober;
+		this.rise = rise;
+		this.fall = fall;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Change the load balancer instances whose hosts are checked. Hosts that
+	 * were already checked under the same virtual IP keep their state, which
+	 * is passed on to their new instance if they are down, and new hosts
+	 * start out up.
+	 * @param instances the load balancer instances; only the hosts of those
+	 *         with a health check port are checked
+	 */
+	public synchronized void setInstances(
+			Collection<LoadBalancerInstance> instances)
+	{
+		Map<Integer,Target[]> previousTargets = 
+				new HashMap<Integer,Target[]>(this.targets);
+		this.targets.clear();
+		for (LoadBalancerInstance instance : instances)
+		{
+			if (0 == instance.getHealthCheckPort())
+			{ continue; }
+			Target[] previous = previousTargets.get(instance.getVirtualIP());
+			Target[] instanceTargets = new Target[instance.getHostCount()];
+			for (int i = 0; i < instanceTargets.length; i++)
+			{
+				instanceTargets[i] = new Target(instance, i);
+				for (int j = 0; previous != null && j < previous.length; j++)
+				{
+					if (previous[j].instance.getHostIP(previous[j].hostIndex)
+							!= instance.getHostIP(i))
+					{ continue; }
+					instanceTargets[i].up = previous[j].up;
+					instanceTargets[i].passes = previous[j].passes;
+					instanceTargets[i].failures = previous[j].failures;
+					instanceTargets[i].outstanding = previous[j].outstanding;
+					if (!previous[j].up)
+					{ instance.setHostUp(i, false); }
+				}
+			}
+			this.targets.put(instance.getVirtualIP(), instanceTargets);
+		}
+	}
+	
+	/**
+	 * Check whether any hosts are checked.
+	 */
+	public synchronized boolean isEmpty()
+	{ return this.targets.isEmpty(); }
+	
+	/**
+	 * Start a round of checks. Checks from the last round that have no
+	 * outcome yet count as failed.
+	 */
+	public void runProbes()
+	{
+		List<Target> started = new ArrayList<Target>();
+		synchronized (this)
+		{
+			for (Target[] instanceTargets : this.targets.values())
+			{
+				for (Target target : instanceTargets)
+				{
+					if (target.outstanding)
+					{ this.record(target, false); }
+					target.outstanding = true;
+					started.add(target);
+				}
+			}
+		}
+		
+		// Probers may take a while to send a check, so call them without
+		// holding the lock
+		for (Target target : started)
+		{ this.prober.probe(this, target.instance, target.hostIndex); }
+	}
+	
+	/**
+	 * Report the outcome of a check. Outcomes of checks that already
+	 * counted as failed are ignored.
+	 * @param virtualIP the virtual IP of the host's instance
+	 * @param hostIP the IP address of the host
+	 * @param passed whether the host accepted the connection
+	 */
+	public synchronized void reportResult(int virtualIP, int hostIP, 
+			boolean passed)
+	{
+		Target[] instanceTargets = this.targets.get(virtualIP);
+		if (null == instanceTargets)
+		{ return; }
+		for (Target target : instanceTargets)
+		{
+			if (target.instance.getHostIP(target.hostIndex) != hostIP
+					|| !target.outstanding)
+			{ continue; }
+			target.outstanding = false;
+			this.record(target, passed);
+		}
+	}
+	
+	/**
+	 * Count the outcome of a check towards a host's state, telling the
+	 * listener if the host goes up or down. The listener is called with the
+	 * lock held, so it sees changes of a host in the order they happen.
+	 */
+	private void record(Target target, boolean passed)
+	{
+		if (passed)
+		{
+			target.failures = 0;
+			target.passes++;
+			if (target.up || target.passes < this.rise)
+			{ return; }
+			target.up = true;
+		}
+		else
+		{
+			target.passes = 0;
+			target.failures++;
+			if (!target.up || target.failures < this.fall)
+			{ return; }
+			target.up = false;
+		}
+		this.listener.hostStateChanged(target.instance, target.hostIndex,
+				target.up);
+	}
+	
+	/**
+	 * Check whether a host is considered up.
+	 * @param virtualIP the virtual IP of the host's instance
+	 * @param hostIndex the index of the host within the instance
+	 * @return whether the host is up; true if the host is not checked
+	 */
+	public synchronized boolean isUp(int virtualIP, int hostIndex)
+	{
+		Target[] instanceTargets = this.targets.get(virtualIP);
+		return (null == instanceTargets || instanceTargets[hostIndex].up);
+	}
+}
@@ -0,0 +1,61 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Lets other modules change the load balancer's virtual IPs and their hosts
+ * while it runs. Each change is pushed to every switch in one batch, and
+ * only the rules it affects are touched, so connections to other virtual
+ * IPs and hosts keep their rules.
+ */
+public interface ILoadBalancerService extends IFloodlightService
+{
+	/**
+	 * Get the load balancer instances.
+	 */
+	public Collection<LoadBalancerInstance> getInstances();
+	
+	/**
+	 * Add a load balancer instance, replacing any instance with the same
+	 * virtual IP.
+	 * @param config the instance, in the form of an entry of the instances
+	 *         property: virtual IP, virtual MAC, hosts and options
+	 * @return the instance
+	 * @throws IllegalArgumentException if the config is bad, or puts a host
+	 *         in two group or proactive NAT instances on the same port
+	 */
+	public LoadBalancerInstance addInstance(String config);
+	
+	/**
+	 * Remove a load balancer instance, along with its connections' rules.
+	 * @param virtualIP the instance's virtual IP
+	 * @return false if there is no instance with the virtual IP
+	 */
+	public boolean removeInstance(int virtualIP);
+	
+	/**
+	 * Add a host to a load balancer instance, or change its weight if the
+	 * instance already has it.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @param weight the host's relative capacity
+	 * @return false if there is no instance with the virtual IP
+	 * @throws IllegalArgumentException if the weight is bad, or the host is
+	 *         in another group or proactive NAT instance on the same port,
+	 *         and this one is one too
+	 */
+	public boolean addHost(int virtualIP, int hostIP, int weight);
+	
+	/**
+	 * Remove a host from a load balancer instance. The host gets no new
+	 * connections, and its existing connections are left to drain.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return false if there is no instance with the virtual IP, or it does
+	 *         not have the host
+	 * @throws IllegalArgumentException if it is the instance's only host
+	 */
+	public boolean removeHost(int virtualIP, int hostIP);
+}
@@ -1,29 +1,46 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFGroupMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMatchField;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFOXMFieldType;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionGroup;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.action.OFActionSetField;
 import org.openflow.protocol.instruction.OFInstruction;
 import org.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.openflow.protocol.instruction.OFInstructionGotoTable;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.l3routing.IL3RoutingListener;
+import edu.wisc.cs.sdn.apps.l3routing.IL3RoutingService;
 import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
 import edu.wisc.cs.sdn.apps.util.ArpServer;
+import edu.wisc.cs.sdn.apps.util.IHostAddressService;
+import edu.wisc.cs.sdn.apps.util.PacketHeaders;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -36,24 +53,78 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.devicemanager.IDevice;
-import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.util.MACAddress;
 
 public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
-		IOFMessageListener
+		IOFMessageListener, IL3RoutingListener, HealthChecker.Listener,
+		ILoadBalancerService
 {
 	public static final String MODULE_NAME = LoadBalancer.class.getSimpleName();
 	
-	private static final byte TCP_FLAG_SYN = 0x02;
-	
 	private static final short IDLE_TIMEOUT = 20;
 	
+	private static final int DEFAULT_MAX_CONNECTIONS = 1000000;
+	
+	private static final int DEFAULT_PENDING_WINDOW = 500;
+	
+	private static final int DEFAULT_HISTORY_SIZE = 1 << 18;
+	
+	private static final int DEFAULT_HISTORY_TIMEOUT = 7200;
+	
+	private static final int DEFAULT_REBALANCE_INTERVAL = 30;
+	
+	private static final double DEFAULT_REBALANCE_THRESHOLD = 1.5;
+	
+	// New connections aren't limited unless the config says so
+	private static final int DEFAULT_SYN_SOURCE_RATE = 0;
+	
+	private static final int DEFAULT_SYN_VIRTUAL_RATE = 0;
+	
+	private static final short DEFAULT_BLOCK_TIMEOUT = 10;
+	
+	private static final int DEFAULT_WORKER_QUEUE = 4096;
+	
+	private static final int DEFAULT_HEALTH_INTERVAL = 2;
+	
+	private static final int DEFAULT_HEALTH_RISE = 2;
+	
+	private static final int DEFAULT_HEALTH_FALL = 2;
+	
+	// Rules rewriting a host's replies from a service port must win over the
+	// rules sending
+	// packets to the controller, and yield to the rules of reactive instances'
+	// connections and of health checks, which may come from the same port
+	private static final short REVERSE_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 1);
+	
+	private static final short BLOCK_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 2);
+	
+	private static final short PARTITION_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 3);
+	
+	private static final short CONNECTION_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 4);
+	
+	// Rules for all of a client's connections yield to rules for single
+	// connections, which are more specific
+	private static final short AFFINITY_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 3);
+	
+	// Rules forwarding packets to a virtual IP by host MAC address must win
+	// over block and prefix rules, which would act on them a second time
+	private static final short TRANSIT_PRIORITY = CONNECTION_PRIORITY;
+	
+	private static final short PROBE_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 5);
+	
     public boolean DEBUG = false;
 
     // Interface to the logging system
@@ -62,14 +133,76 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
     // Interface to Floodlight core for interacting with connected switches
     private IFloodlightProviderService floodlightProv;
     
-    // Interface to device manager service
-    private IDeviceService deviceProv;
+    // Interface to the MAC addresses of hosts, by IP
+    private IHostAddressService hostAddressProv;
+    
+    // Interface to the routes computed by L3Routing
+    private IL3RoutingService l3RoutingProv;
+    
+    // Interface to the controller's thread pool
+    private IThreadPoolService threadPoolProv;
     
     // Switch table in which rules should be installed
     private byte table;
     
+    // Whether this module's batches of messages end with a barrier request
+    private boolean batchBarrier;
+    
     // Set of virtual IPs and the load balancer instances they correspond with
     private Map<Integer,LoadBalancerInstance> instances;
+    
+    // Instances indexed by virtual IP for lookups on the packet path; rebuilt
+    // from instances whenever they change
+    private volatile VirtualIPTable virtualIPs;
+    
+    // Connections for which rules are installed and the hosts they go to
+    private ConnectionTable connections;
+    
+    // Connections assigned a host so recently that their rules may not have
+    // reached the switch yet
+    private PendingConnections pendingConnections;
+    
+    // Hosts of connections whose rules idled out, in case they were only idle
+    private AssignmentHistory assignments;
+    
+    // Whether proactive instances' partitions are rebalanced by traffic;
+    // moving a prefix moves its clients' established connections to another
+    // host, which breaks them
+    private boolean rebalance;
+    
+    // Seconds between rebalances of proactive instances' partitions
+    private int rebalanceInterval;
+    
+    // Ratio of a host's share of traffic to its share of weight beyond which
+    // a proactive instance's partition is rebalanced
+    private double rebalanceThreshold;
+    
+    // Task that periodically rebalances proactive instances' partitions
+    private SingletonTask rebalanceTask;
+    
+    // Limits on the rate of new connections from each source and to each
+    // virtual IP
+    private SynAdmission admission;
+    
+    // Seconds for which a source that sends too many SYNs is blocked
+    private short blockTimeout;
+    
+    // Threads handling SYNs to virtual IPs, null if they are handled on
+    // Floodlight's threads
+    private PacketInWorkers workers;
+    
+    // Virtual IPs of proactive instances some of whose prefix rules could not
+    // be installed because a host's MAC address was unknown
+    private Set<Integer> incompletePartitions;
+    
+    // Checks of the health of instances' hosts
+    private HealthChecker healthChecker;
+    
+    // Seconds between rounds of health checks
+    private int healthInterval;
+    
+    // Task that periodically checks the health of instances' hosts
+    private SingletonTask healthTask;
 
     /**
      * Loads dependencies and initializes data structures.
@@ -83,27 +216,135 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		// Obtain table number from config
 		Map<String,String> config = context.getConfigParams(this);
         this.table = Byte.parseByte(config.get("table"));
+        this.batchBarrier = Boolean.parseBoolean(config.get("batchBarrier"));
+        
+        // Create the connection table, bounded by the config if given
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        if (config.containsKey("maxConnections"))
+        { maxConnections = Integer.parseInt(config.get("maxConnections")); }
+        this.connections = new ConnectionTable(maxConnections);
+        
+        // Remember new connections' hosts for retransmitted SYNs, for as many
+        // milliseconds as the config says, if given
+        int pendingWindow = DEFAULT_PENDING_WINDOW;
+        if (config.containsKey("pendingWindow"))
+        { pendingWindow = Integer.parseInt(config.get("pendingWindow")); }
+        this.pendingConnections = new PendingConnections(pendingWindow);
+        
+        // Remember the hosts of connections whose rules idled out, for as many
+        // connections and seconds as the config says, if given
+        int historySize = DEFAULT_HISTORY_SIZE;
+        if (config.containsKey("historySize"))
+        { historySize = Integer.parseInt(config.get("historySize")); }
+        int historyTimeout = DEFAULT_HISTORY_TIMEOUT;
+        if (config.containsKey("historyTimeout"))
+        { historyTimeout = Integer.parseInt(config.get("historyTimeout")); }
+        this.assignments = new AssignmentHistory(historySize, 
+        		historyTimeout * 1000L);
+        
+        // Obtain whether and how proactive instances are rebalanced from
+        // config, if given
+        this.rebalance = Boolean.parseBoolean(config.get("rebalance"));
+        this.rebalanceInterval = DEFAULT_REBALANCE_INTERVAL;
+        if (config.containsKey("rebalanceInterval"))
+        { 
+        	this.rebalanceInterval = Integer.parseInt(
+        			config.get("rebalanceInterval")); 
+        }
+        this.rebalanceThreshold = DEFAULT_REBALANCE_THRESHOLD;
+        if (config.containsKey("rebalanceThreshold"))
+        { 
+        	this.rebalanceThreshold = Double.parseDouble(
+        			config.get("rebalanceThreshold")); 
+        }
+        this.incompletePartitions = 
+        		Collections.synchronizedSet(new HashSet<Integer>());
         
         // Create instances from config
-        this.instances = new HashMap<Integer,LoadBalancerInstance>();
+        this.instances = new ConcurrentHashMap<Integer,LoadBalancerInstance>();
         String[] instanceConfigs = config.get("instances").split(";");
         for (String instanceConfig : instanceConfigs)
         {
-        	String[] configItems = instanceConfig.split(" ");
-        	if (configItems.length != 3)
-        	{ 
-        		log.error("Ignoring bad instance config: " + instanceConfig);
+        	LoadBalancerInstance instance;
+        	try
+        	{
+        		instance = this.parseInstance(instanceConfig);
+        		this.checkHostRules(instance);
+        	}
+        	catch (IllegalArgumentException e)
+        	{
+        		log.error("Ignoring bad instance config: " + instanceConfig
+        				+ " (" + e.getMessage() + ")");
         		continue;
         	}
-        	LoadBalancerInstance instance = new LoadBalancerInstance(
-        			configItems[0], configItems[1], configItems[2].split(","));
+        	if (instance.getMode() == LoadBalancerInstance.Mode.PROACTIVE)
+        	{ 
+        		instance.setPartition(new SourcePartition(instance, 
+        				this.rebalanceThreshold)); 
+        	}
             this.instances.put(instance.getVirtualIP(), instance);
             log.info("Added load balancer instance: " + instance);
         }
+        this.virtualIPs = new VirtualIPTable(this.instances.values());
+        
+        // Obtain limits on the rate of new connections from config, if given
+        int synSourceRate = DEFAULT_SYN_SOURCE_RATE;
+        if (config.containsKey("synSourceRate"))
+        { synSourceRate = Integer.parseInt(config.get("synSourceRate")); }
+        int synSourceBurst = 2 * synSourceRate;
+        if (config.containsKey("synSourceBurst"))
+        { synSourceBurst = Integer.parseInt(config.get("synSourceBurst")); }
+        int synVirtualRate = DEFAULT_SYN_VIRTUAL_RATE;
+        if (config.containsKey("synVirtualRate"))
+        { synVirtualRate = Integer.parseInt(config.get("synVirtualRate")); }
+        int synVirtualBurst = 2 * synVirtualRate;
+        if (config.containsKey("synVirtualBurst"))
+        { synVirtualBurst = Integer.parseInt(config.get("synVirtualBurst")); }
+        this.blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+        if (config.containsKey("blockTimeout"))
+        { this.blockTimeout = Short.parseShort(config.get("blockTimeout")); }
+        this.admission = new SynAdmission(this.instances.keySet(), 
+        		synSourceRate, synSourceBurst, synVirtualRate, synVirtualBurst);
+        
+        // Handle SYNs on a pool of workers, if the config asks for one
+        if (config.containsKey("workers") 
+        		&& Integer.parseInt(config.get("workers")) > 0)
+        {
+        	int workerQueue = DEFAULT_WORKER_QUEUE;
+        	if (config.containsKey("workerQueue"))
+        	{ workerQueue = Integer.parseInt(config.get("workerQueue")); }
+        	this.workers = new PacketInWorkers(MODULE_NAME, 
+        			Integer.parseInt(config.get("workers")), workerQueue,
+        			new PacketInWorkers.Handler()
+        			{
+        				@Override
+        				public void handle(IOFSwitch sw, OFPacketIn pktIn)
+        				{ handleWorkerPacketIn(sw, pktIn); }
+        			});
+        	log.info(String.format("Handling SYNs on %d workers", 
+        			this.workers.size()));
+        }
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
-        this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.hostAddressProv = context.getServiceImpl(IHostAddressService.class);
+        this.l3RoutingProv = context.getServiceImpl(IL3RoutingService.class);
+        this.threadPoolProv = context.getServiceImpl(IThreadPoolService.class);
+        
+        // Obtain how hosts' health is checked from config, if given
+        this.healthInterval = DEFAULT_HEALTH_INTERVAL;
+        if (config.containsKey("healthInterval"))
+        { this.healthInterval = Integer.parseInt(config.get("healthInterval")); }
+        int healthRise = DEFAULT_HEALTH_RISE;
+        if (config.containsKey("healthRise"))
+        { healthRise = Integer.parseInt(config.get("healthRise")); }
+        int healthFall = DEFAULT_HEALTH_FALL;
+        if (config.containsKey("healthFall"))
+        { healthFall = Integer.parseInt(config.get("healthFall")); }
+        this.healthChecker = new HealthChecker(this.instances.values(), 
+        		new SynProber(this.floodlightProv, this.l3RoutingProv, 
+        				this.hostAddressProv), 
+        		healthRise, healthFall, this);
         
         /*********************************************************************/
         /* TODO: Initialize other class variables, if necessary              */
@@ -111,6 +352,24 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
         /*********************************************************************/
 	}
 
+	/**
+	 * Create a load balancer instance from its config: virtual IP, virtual
+	 * MAC, comma-separated hosts and, optionally, comma-separated options.
+	 * @param instanceConfig the config
+	 * @return the instance, without a partition
+	 * @throws IllegalArgumentException if the config is bad
+	 */
+	private LoadBalancerInstance parseInstance(String instanceConfig)
+	{
+		String[] configItems = instanceConfig.trim().split(" ");
+		if (configItems.length != 3 && configItems.length != 4)
+		{ throw new IllegalArgumentException("Wrong number of items"); }
+		String[] options = (configItems.length > 3 
+				? configItems[3].split(",") : new String[0]);
+		return new LoadBalancerInstance(configItems[0], configItems[1], 
+				configItems[2].split(","), options);
+	}
+
 	/**
      * Subscribes to events and performs other startup tasks.
      */
@@ -121,6 +380,57 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFSwitchListener(this);
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, this);
+		this.l3RoutingProv.addListener(this);
+		
+		// Periodically rebalance the partitions of proactive instances
+		this.rebalanceTask = new SingletonTask(
+				this.threadPoolProv.getScheduledExecutor(), new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{ rebalancePartitions(); }
+						catch (Exception e)
+						{ log.error("Failed to rebalance partitions", e); }
+						finally
+						{ 
+							rebalanceTask.reschedule(rebalanceInterval, 
+									TimeUnit.SECONDS); 
+						}
+					}
+				});
+		for (LoadBalancerInstance instance : this.instances.values())
+		{
+			if (instance.getPartition() != null)
+			{
+				this.rebalanceTask.reschedule(this.rebalanceInterval, 
+						TimeUnit.SECONDS);
+				break;
+			}
+		}
+		
+		// Periodically check the health of hosts, if any instance asks for it
+		this.healthTask = new SingletonTask(
+				this.threadPoolProv.getScheduledExecutor(), new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{ healthChecker.runProbes(); }
+						catch (Exception e)
+						{ log.error("Failed to check hosts' health", e); }
+						finally
+						{ 
+							healthTask.reschedule(healthInterval, 
+									TimeUnit.SECONDS); 
+						}
+					}
+				});
+		if (!this.healthChecker.isEmpty())
+		{ this.healthTask.reschedule(this.healthInterval, TimeUnit.SECONDS); }
 		
 		/*********************************************************************/
 		/* TODO: Perform other tasks, if necessary                           */
@@ -146,67 +456,961 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       (3) all other packets to the next rule table in the switch  */
 		
 		/*********************************************************************/
-		// packets from new connections to each virtual load balancer IP to the controller 
-		for(int virtualIP : instances.keySet()){
-			OFMatchField fieldEthTypeIP = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
-			OFMatchField fieldIP = new OFMatchField(OFOXMFieldType.IPV4_DST, virtualIP);
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			// packets from new connections to each virtual load balancer IP, and
+			// ARP packets, to the controller
+			for(LoadBalancerInstance instance : instances.values()){
+				installInstanceRules(sw, instance);
+			}
+
+			// all other packets to the next rule table in the switch
+			{
+				OFMatch ofMatchDefault = new OFMatch();
 			
-			ArrayList<OFMatchField> matchFieldsIPPackets = new ArrayList<OFMatchField>();
-			matchFieldsIPPackets.add(fieldEthTypeIP);
-			matchFieldsIPPackets.add(fieldIP);
+				OFInstructionGotoTable ofInstructionGotoTable = new OFInstructionGotoTable();
+				ofInstructionGotoTable.setTableId(L3Routing.table);
 			
-			OFMatch ofMatchIP = new OFMatch();
-			ofMatchIP.setMatchFields(matchFieldsIPPackets);
+				ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+				listOfInstructions.add(ofInstructionGotoTable);
 			
-			OFActionOutput ofActionOutput = new OFActionOutput();
-			ofActionOutput.setPort(OFPort.OFPP_CONTROLLER);
+				SwitchCommands.installRule(sw, table, (short)(SwitchCommands.DEFAULT_PRIORITY - 1), ofMatchDefault, listOfInstructions);
+			}
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+	}
 	
-			ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
-			ofActions.add(ofActionOutput);
-			
-			OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
-			ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
-			listOfInstructions.add(applyActions);
-
-			SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatchIP, listOfInstructions);
+	/**
+	 * Install the rules for a load balancer instance: those sending ARP
+	 * requests for its virtual IP and packets of new connections to the
+	 * controller, or balancing connections in the switch, and any its hosts
+	 * need.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void installInstanceRules(IOFSwitch sw, LoadBalancerInstance instance){
+		int virtualIP = instance.getVirtualIP();
+		if(instance.getHealthCheckPort() != 0){
+			installProbeReplyRule(sw, instance);
 		}
+		installArpRule(sw, virtualIP);
+		if(instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+			installGroupRules(sw, instance);
+			return;
+		}
+		
+		// Prefix rules take precedence; the controller only sees
+		// connections whose prefix has no rule yet
+		if(instance.getMode() == LoadBalancerInstance.Mode.PROACTIVE){
+			installPartitionRules(sw, instance);
+		}
+		else if(instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR){
+			installTransitRules(sw, instance);
+		}
+		
+		installPuntRule(sw, virtualIP);
+	}
+	
+	/**
+	 * Install the rule sending packets to a virtual IP that no other rule
+	 * handles to the controller.
+	 * @param sw the switch
+	 * @param virtualIP the virtual IP address
+	 */
+	private void installPuntRule(IOFSwitch sw, int virtualIP){
+		OFMatchField fieldEthTypeIP = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
+		OFMatchField fieldIP = new OFMatchField(OFOXMFieldType.IPV4_DST, virtualIP);
+	
+		ArrayList<OFMatchField> matchFieldsIPPackets = new ArrayList<OFMatchField>();
+		matchFieldsIPPackets.add(fieldEthTypeIP);
+		matchFieldsIPPackets.add(fieldIP);
+	
+		OFMatch ofMatchIP = new OFMatch();
+		ofMatchIP.setMatchFields(matchFieldsIPPackets);
+	
+		// Only the headers are sent; the switch buffers the packet until
+		// the connection's rules release it
+		OFActionOutput ofActionOutput = new OFActionOutput();
+		ofActionOutput.setPort(OFPort.OFPP_CONTROLLER);
+		ofActionOutput.setMaxLength(SwitchCommands.PUNT_MAX_LENGTH);
+	
+		ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
+		ofActions.add(ofActionOutput);
+	
+		OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
+		ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+		listOfInstructions.add(applyActions);
 
-		// ARP packets to the controller
-		for(int virtualIP : instances.keySet()){
-			OFMatchField fieldEthTypeARP = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_ARP);
-			OFMatchField fieldARPsIP = new OFMatchField(OFOXMFieldType.ARP_TPA, virtualIP);
-			
-			ArrayList<OFMatchField> matchFieldsARPPackets = new ArrayList<OFMatchField>();
-			matchFieldsARPPackets.add(fieldEthTypeARP);
-			matchFieldsARPPackets.add(fieldARPsIP);
-
-			OFMatch ofMatchARP = new OFMatch();
-			ofMatchARP.setMatchFields(matchFieldsARPPackets);
-			
-			OFActionOutput ofActionOutput = new OFActionOutput();
-			ofActionOutput.setPort(OFPort.OFPP_CONTROLLER);
+		SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatchIP, listOfInstructions);
+	}
 	
-			ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
-			ofActions.add(ofActionOutput);
-			
-			OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
-			ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
-			listOfInstructions.add(applyActions);
+	/**
+	 * Install the rule sending ARP requests for a virtual IP to the
+	 * controller.
+	 * @param sw the switch
+	 * @param virtualIP the virtual IP address
+	 */
+	private void installArpRule(IOFSwitch sw, int virtualIP){
+		OFMatchField fieldEthTypeARP = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_ARP);
+		OFMatchField fieldARPsIP = new OFMatchField(OFOXMFieldType.ARP_TPA, virtualIP);
+	
+		ArrayList<OFMatchField> matchFieldsARPPackets = new ArrayList<OFMatchField>();
+		matchFieldsARPPackets.add(fieldEthTypeARP);
+		matchFieldsARPPackets.add(fieldARPsIP);
 
-			SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatchARP, listOfInstructions);
-		}
+		OFMatch ofMatchARP = new OFMatch();
+		ofMatchARP.setMatchFields(matchFieldsARPPackets);
+	
+		// ARP requests are smaller than a truncated packet anyway, and are
+		// answered here rather than released, so they are not buffered
+		OFActionOutput ofActionOutput = new OFActionOutput();
+		ofActionOutput.setPort(OFPort.OFPP_CONTROLLER);
+		ofActionOutput.setMaxLength(SwitchCommands.NO_BUFFER);
+	
+		ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
+		ofActions.add(ofActionOutput);
+	
+		OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
+		ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+		listOfInstructions.add(applyActions);
 
-		// all other packets to the next rule table in the switch
+		SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatchARP, listOfInstructions);
+	}
+	
+	/**
+	 * Install the rule sending hosts' replies to health check probes to the
+	 * controller. It is above all other rules, since replies are sent to the
+	 * virtual IP like any other traffic from hosts.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void installProbeReplyRule(IOFSwitch sw, LoadBalancerInstance instance){
+		OFMatch ofMatch = buildProbeReplyMatch(instance);
+		
+		// Replies end at the controller, so they are not buffered
+		OFActionOutput ofActionOutput = new OFActionOutput();
+		ofActionOutput.setPort(OFPort.OFPP_CONTROLLER);
+		ofActionOutput.setMaxLength(SwitchCommands.NO_BUFFER);
+		ArrayList<OFAction> ofActions = new ArrayList<OFAction>();
+		ofActions.add(ofActionOutput);
+		ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+		listOfInstructions.add(new OFInstructionApplyActions(ofActions));
+		
+		SwitchCommands.installRule(sw, table, PROBE_PRIORITY, ofMatch, listOfInstructions);
+	}
+	
+	/**
+	 * Build the match of the rule sending replies to health check probes to
+	 * the controller.
+	 * @param instance the load balancer instance
+	 */
+	private OFMatch buildProbeReplyMatch(LoadBalancerInstance instance){
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, instance.getVirtualIP()));
+		matchFields.add(new OFMatchField(OFOXMFieldType.TCP_DST, SynProber.PROBE_PORT));
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		return ofMatch;
+	}
+	
+	/**
+	 * Install the select group and rules with which a switch balances
+	 * connections to an instance without involving the controller: a rule
+	 * sending packets to the instance's service port to the group, whose
+	 * buckets rewrite them for a host, and a rule per host rewriting its
+	 * replies.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void installGroupRules(IOFSwitch sw, LoadBalancerInstance instance){
+		int virtualIP = instance.getVirtualIP();
+		
+		// The group ID is the virtual IP, so it stays the same across restarts
+		SwitchCommands.removeGroup(sw, virtualIP);
+		SwitchCommands.installGroup(sw, OFGroupMod.OFPGC_ADD, OFGroupMod.OFPGT_SELECT, 
+				virtualIP, buildGroupBuckets(sw, instance));
+		
 		{
-			OFMatch ofMatchDefault = new OFMatch();
+			ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+			matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+			matchFields.add(new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP));
+			matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, virtualIP));
+			matchFields.add(new OFMatchField(OFOXMFieldType.TCP_DST, instance.getServicePort()));
+			OFMatch ofMatch = new OFMatch();
+			ofMatch.setMatchFields(matchFields);
 			
+			ArrayList<OFAction> ofActions = new ArrayList<OFAction>();
+			ofActions.add(new OFActionGroup(virtualIP));
+			ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+			listOfInstructions.add(new OFInstructionApplyActions(ofActions));
+			
+			SwitchCommands.installRule(sw, table, SwitchCommands.DEFAULT_PRIORITY, ofMatch, listOfInstructions);
+		}
+		
+		if(instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR){
+			installTransitRules(sw, instance);
+		}
+		else{
+			installReverseRules(sw, instance);
+		}
+	}
+	
+	/**
+	 * Install a rule per host of an instance making the host's replies appear
+	 * to come from the virtual IP.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void installReverseRules(IOFSwitch sw, LoadBalancerInstance instance){
+		for(int i = 0; i < instance.getHostCount(); i++){
+			installReverseRule(sw, instance, i);
+		}
+	}
+	
+	/**
+	 * Install the rule making a host's replies from the instance's service
+	 * port appear to come from the virtual IP.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 * @param hostIndex the index of the host within the instance
+	 */
+	private void installReverseRule(IOFSwitch sw, LoadBalancerInstance instance, int hostIndex){
+		ArrayList<OFAction> ofActions = new ArrayList<OFAction>();
+		ofActions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, instance.getVirtualMAC()));
+		ofActions.add(new OFActionSetField(OFOXMFieldType.IPV4_SRC, instance.getVirtualIP()));
+		OFInstructionGotoTable ofInstructionGotoTable = new OFInstructionGotoTable();
+		ofInstructionGotoTable.setTableId(L3Routing.table);
+		ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+		listOfInstructions.add(new OFInstructionApplyActions(ofActions));
+		listOfInstructions.add(ofInstructionGotoTable);
+		
+		SwitchCommands.installRule(sw, table, REVERSE_PRIORITY, 
+				buildReverseMatch(instance, instance.getHostIP(hostIndex)), listOfInstructions);
+	}
+	
+	/**
+	 * Build the match of the rule rewriting a host's replies from an
+	 * instance's service port.
+	 * @param instance the load balancer instance
+	 * @param hostIP the host's IP address
+	 */
+	private OFMatch buildReverseMatch(LoadBalancerInstance instance, int hostIP){
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_SRC, hostIP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.TCP_SRC, instance.getServicePort()));
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		return ofMatch;
+	}
+	
+	/**
+	 * Build a match covering every rule rewriting a host's replies, including
+	 * the reverse rules of the host's connections.
+	 * @param hostIP the host's IP address
+	 */
+	private OFMatch buildReverseMatch(int hostIP){
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_SRC, hostIP));
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		return ofMatch;
+	}
+	
+	/**
+	 * Install a rule per host of a direct server return instance forwarding
+	 * packets to the virtual IP that were already sent to the host, i.e.
+	 * whose destination MAC address is the host's, towards the host. Routes
+	 * only lead to hosts' own IPs, so every switch on the way needs these.
+	 * Hosts whose MAC address or route is unknown are skipped.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void installTransitRules(IOFSwitch sw, LoadBalancerInstance instance){
+		for(int i = 0; i < instance.getHostCount(); i++){
+			int hostIP = instance.getHostIP(i);
+			long hostMAC = getHostMACAddress(hostIP);
+			if(hostMAC != 0){
+				installTransitRule(sw, instance, hostIP, hostMAC);
+			}
+		}
+	}
+	
+	/**
+	 * Install the rule forwarding packets to a direct server return
+	 * instance's virtual IP, sent to one of its hosts, towards the host.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 * @param hostIP the host's IP address
+	 * @param hostMAC the host's MAC address
+	 */
+	private void installTransitRule(IOFSwitch sw, LoadBalancerInstance instance, 
+			int hostIP, long hostMAC){
+		Integer outPort = l3RoutingProv.getOutPort(sw.getId(), hostIP);
+		if(null == outPort){
+			return;
+		}
+		
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_DST, MACAddress.valueOf(hostMAC).toBytes()));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, instance.getVirtualIP()));
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		
+		ArrayList<OFAction> ofActions = new ArrayList<OFAction>();
+		ofActions.add(new OFActionOutput(outPort));
+		ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+		listOfInstructions.add(new OFInstructionApplyActions(ofActions));
+		
+		SwitchCommands.installRule(sw, table, TRANSIT_PRIORITY, ofMatch, listOfInstructions);
+	}
+	
+	/**
+	 * Install the rules with which a switch sends each prefix of client
+	 * addresses to the host it is assigned to, and the rules rewriting the
+	 * hosts' replies. Prefixes whose host's MAC address is unknown are left to
+	 * the controller, and retried when the partition is next rebalanced.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void installPartitionRules(IOFSwitch sw, LoadBalancerInstance instance){
+		boolean complete = true;
+		for(SourcePartition.Prefix prefix : instance.getPartition().getPrefixes()){
+			complete &= installPrefixRule(sw, instance, prefix);
+		}
+		if(!complete){
+			incompletePartitions.add(instance.getVirtualIP());
+		}
+		if(instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR){
+			installTransitRules(sw, instance);
+		}
+		else{
+			installReverseRules(sw, instance);
+		}
+	}
+	
+	/**
+	 * Install the rule sending a prefix of client addresses to its host.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 * @param prefix the prefix
+	 * @return false if the host's MAC address, or for direct server return
+	 *         the route to it, is unknown, otherwise true
+	 */
+	private boolean installPrefixRule(IOFSwitch sw, LoadBalancerInstance instance, 
+			SourcePartition.Prefix prefix){
+		int hostIP = instance.getHostIP(prefix.getHost());
+		long hostMAC = getHostMACAddress(hostIP);
+		if(0 == hostMAC){
+			return false;
+		}
+		
+		ArrayList<OFAction> ofActions = new ArrayList<OFAction>();
+		ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+		ofActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, MACAddress.valueOf(hostMAC).toBytes()));
+		if(instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR){
+			Integer outPort = l3RoutingProv.getOutPort(sw.getId(), hostIP);
+			if(null == outPort){
+				return false;
+			}
+			ofActions.add(new OFActionOutput(outPort));
+			listOfInstructions.add(new OFInstructionApplyActions(ofActions));
+		}
+		else{
+			ofActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP));
 			OFInstructionGotoTable ofInstructionGotoTable = new OFInstructionGotoTable();
 			ofInstructionGotoTable.setTableId(L3Routing.table);
-			
-			ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
+			listOfInstructions.add(new OFInstructionApplyActions(ofActions));
 			listOfInstructions.add(ofInstructionGotoTable);
+		}
+		
+		OFFlowMod rule = new OFFlowMod();
+		rule.setHardTimeout(SwitchCommands.NO_TIMEOUT);
+		rule.setIdleTimeout(SwitchCommands.NO_TIMEOUT);
+		rule.setPriority(PARTITION_PRIORITY);
+		rule.setTableId(table);
+		rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+		rule.setCookie(prefix.getCookie());
+		rule.setMatch(buildPrefixMatch(instance, prefix));
+		rule.setInstructions(listOfInstructions);
+		int length = OFFlowMod.MINIMUM_LENGTH;
+		for(OFInstruction instruction : listOfInstructions){
+			length += instruction.getLengthU();
+		}
+		rule.setLength((short)length);
+		return SwitchCommands.installRule(sw, rule);
+	}
+	
+	/**
+	 * Build the match of the rule for a prefix of client addresses.
+	 * @param instance the load balancer instance
+	 * @param prefix the prefix
+	 */
+	private OFMatch buildPrefixMatch(LoadBalancerInstance instance, 
+			SourcePartition.Prefix prefix){
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, instance.getVirtualIP()));
+		matchFields.add(new OFMatchField(OFOXMFieldType.TCP_DST, instance.getServicePort()));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_SRC, prefix.getAddress(), prefix.getMask()));
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		return ofMatch;
+	}
+	
+	/**
+	 * Rebalance the partitions of proactive instances using the traffic
+	 * counted by each prefix's rules across all switches, and update the
+	 * switches' rules to match. Unless rebalancing is turned on, only the
+	 * counts are updated and incomplete rules retried.
+	 */
+	private void rebalancePartitions(){
+		Collection<IOFSwitch> switches = floodlightProv.getAllSwitchMap().values();
+		
+		// Sum the bytes through each prefix rule of each instance
+		Map<Integer,Map<Long,Long>> counts = new HashMap<Integer,Map<Long,Long>>();
+		for(IOFSwitch sw : switches){
+			List<OFFlowStatisticsReply> stats = SwitchCommands.getFlowStatistics(sw, 
+					table, SourcePartition.COOKIE_TAG, SourcePartition.COOKIE_TAG_MASK);
+			if(null == stats){
+				continue;
+			}
+			for(OFFlowStatisticsReply stat : stats){
+				int virtualIP = 0;
+				for(OFMatchField field : stat.getMatch().getMatchFields()){
+					if(field.getType() == OFOXMFieldType.IPV4_DST){
+						virtualIP = ((Number)field.getValue()).intValue();
+					}
+				}
+				Map<Long,Long> instanceCounts = counts.get(virtualIP);
+				if(null == instanceCounts){
+					instanceCounts = new HashMap<Long,Long>();
+					counts.put(virtualIP, instanceCounts);
+				}
+				Long count = instanceCounts.get(stat.getCookie());
+				instanceCounts.put(stat.getCookie(), 
+						(null == count ? 0 : count) + stat.getByteCount());
+			}
+		}
+		
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			for(LoadBalancerInstance instance : instances.values()){
+				SourcePartition partition = instance.getPartition();
+				if(null == partition){
+					continue;
+				}
+				
+				List<SourcePartition.Prefix> prefixes = partition.getPrefixes();
+				Map<Long,Long> instanceCounts = counts.get(instance.getVirtualIP());
+				long[] prefixCounts = new long[prefixes.size()];
+				for(int i = 0; i < prefixes.size() && instanceCounts != null; i++){
+					Long count = instanceCounts.get(prefixes.get(i).getCookie());
+					prefixCounts[i] = (null == count ? 0 : count);
+				}
+				partition.updateCounts(prefixCounts);
+				
+				// Rules for prefixes whose host was unknown are retried as a whole
+				if(incompletePartitions.remove(instance.getVirtualIP())){
+					for(IOFSwitch sw : switches){
+						installPartitionRules(sw, instance);
+					}
+				}
+				
+				if(!rebalance){
+					continue;
+				}
+				SourcePartition.Change change = partition.rebalance(instance);
+				if(change.isEmpty()){
+					continue;
+				}
+				log.info(String.format("Rebalancing %s: replacing %d prefixes with %d", 
+						IPv4.fromIPv4Address(instance.getVirtualIP()), 
+						change.removed.size(), change.added.size()));
+				applyPartitionChange(switches, instance, change);
+			}
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+	}
+	
+	/**
+	 * Replace the rules of prefixes that changed on every switch.
+	 * @param switches the switches
+	 * @param instance the load balancer instance
+	 * @param change the prefixes whose rules are removed and added
+	 */
+	private void applyPartitionChange(Collection<IOFSwitch> switches, 
+			LoadBalancerInstance instance, SourcePartition.Change change){
+		for(IOFSwitch sw : switches){
+			// Only the prefix rule itself goes; rules of its clients' connections stay
+			for(SourcePartition.Prefix prefix : change.removed){
+				SwitchCommands.removeRule(sw, table, PARTITION_PRIORITY, buildPrefixMatch(instance, prefix));
+			}
+			boolean complete = true;
+			for(SourcePartition.Prefix prefix : change.added){
+				complete &= installPrefixRule(sw, instance, prefix);
+			}
+			if(!complete){
+				incompletePartitions.add(instance.getVirtualIP());
+			}
+		}
+	}
+	
+	/**
+	 * Build the buckets of an instance's select group on a switch: one per
+	 * available host whose MAC address and route from the switch are known,
+	 * weighted by the host's weight.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 * @return the buckets
+	 */
+	private List<OFBucket> buildGroupBuckets(IOFSwitch sw, LoadBalancerInstance instance){
+		List<OFBucket> buckets = new ArrayList<OFBucket>();
+		for(int i = 0; i < instance.getHostCount(); i++){
+			if(!instance.isHostAvailable(i)){
+				continue;
+			}
+			int hostIP = instance.getHostIP(i);
+			long hostMAC = getHostMACAddress(hostIP);
+			Integer outPort = l3RoutingProv.getOutPort(sw.getId(), hostIP);
+			if(0 == hostMAC || null == outPort){
+				continue;
+			}
 			
-			SwitchCommands.installRule(sw, table, (short)(SwitchCommands.DEFAULT_PRIORITY - 1), ofMatchDefault, listOfInstructions);
+			ArrayList<OFAction> ofActions = new ArrayList<OFAction>();
+			ofActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, MACAddress.valueOf(hostMAC).toBytes()));
+			if(instance.getForwarding() != LoadBalancerInstance.Forwarding.DSR){
+				ofActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP));
+			}
+			ofActions.add(new OFActionOutput(outPort));
+			buckets.add(SwitchCommands.createBucket((short)instance.getHostWeight(i), ofActions));
+		}
+		return buckets;
+	}
+	
+	/**
+	 * Event handler called when L3Routing's routes change. The buckets of
+	 * select groups, and the rules of direct server return instances, hold
+	 * the port towards each host, so they are updated on every switch.
+	 * Connection rules keep their port until they expire.
+	 */
+	@Override
+	public void routesChanged(){
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			for(LoadBalancerInstance instance : instances.values()){
+				if(instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+					updateGroups(instance);
+				}
+				if(instance.getForwarding() != LoadBalancerInstance.Forwarding.DSR){
+					continue;
+				}
+				for(IOFSwitch sw : floodlightProv.getAllSwitchMap().values()){
+					if(instance.getMode() == LoadBalancerInstance.Mode.PROACTIVE){
+						installPartitionRules(sw, instance);
+					}
+					else{
+						installTransitRules(sw, instance);
+					}
+				}
+			}
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+	}
+	
+	/**
+	 * Update the buckets of an instance's select group on every switch.
+	 * @param instance the load balancer instance
+	 */
+	private void updateGroups(LoadBalancerInstance instance){
+		for(IOFSwitch sw : floodlightProv.getAllSwitchMap().values()){
+			SwitchCommands.installGroup(sw, OFGroupMod.OFPGC_MODIFY, OFGroupMod.OFPGT_SELECT, 
+					instance.getVirtualIP(), buildGroupBuckets(sw, instance));
+		}
+	}
+	
+	/**
+	 * Event handler called when a host passes or fails enough health checks
+	 * to go up or down. New connections stop or start going to the host at
+	 * once; rules of connections already assigned to it are left alone, so
+	 * they drain as they end.
+	 * @param instance the load balancer instance
+	 * @param hostIndex the index of the host within the instance
+	 * @param up whether the host is now up
+	 */
+	@Override
+	public void hostStateChanged(LoadBalancerInstance instance, int hostIndex, 
+			boolean up){
+		log.warn(String.format("Host %s of %s is %s", 
+				IPv4.fromIPv4Address(instance.getHostIP(hostIndex)), 
+				IPv4.fromIPv4Address(instance.getVirtualIP()), (up ? "up" : "down")));
+		instance.setHostUp(hostIndex, up);
+		
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			if(instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+				updateGroups(instance);
+			}
+			
+			// Hosts coming back up get prefixes as the partition is rebalanced
+			if(instance.getPartition() != null){
+				SourcePartition.Change change = instance.getPartition().evacuate(instance);
+				if(!change.isEmpty()){
+					applyPartitionChange(floodlightProv.getAllSwitchMap().values(), 
+							instance, change);
+				}
+			}
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+	}
+	
+	/**
+	 * Get the load balancer instances.
+	 */
+	@Override
+	public Collection<LoadBalancerInstance> getInstances()
+	{ return Collections.unmodifiableCollection(this.instances.values()); }
+	
+	/**
+	 * Add a load balancer instance, replacing any instance with the same
+	 * virtual IP.
+	 * @param config the instance's config, as in the instances property
+	 * @return the instance
+	 * @throws IllegalArgumentException if the config is bad, or puts a host
+	 *         in two group or proactive NAT instances on the same port
+	 */
+	@Override
+	public LoadBalancerInstance addInstance(String config)
+	{
+		LoadBalancerInstance instance = this.parseInstance(config);
+		this.replaceInstance(instance.getVirtualIP(), instance);
+		return instance;
+	}
+	
+	/**
+	 * Remove a load balancer instance.
+	 * @param virtualIP the instance's virtual IP
+	 * @return false if there is no instance with the virtual IP
+	 */
+	@Override
+	public boolean removeInstance(int virtualIP)
+	{ return this.replaceInstance(virtualIP, null); }
+	
+	/**
+	 * Add a host to a load balancer instance, or change its weight.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @param weight the host's relative capacity
+	 * @return false if there is no instance with the virtual IP
+	 * @throws IllegalArgumentException if the weight is bad, or the host is
+	 *         in another group or proactive NAT instance on the same port,
+	 *         and this one is one too
+	 */
+	@Override
+	public synchronized boolean addHost(int virtualIP, int hostIP, int weight)
+	{
+		if (weight < 1)
+		{ throw new IllegalArgumentException("Bad weight: " + weight); }
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		
+		List<Integer> hostIPs = new ArrayList<Integer>();
+		for (int i = 0; i < instance.getHostCount(); i++)
+		{ hostIPs.add(instance.getHostIP(i)); }
+		if (!hostIPs.contains(hostIP))
+		{ hostIPs.add(hostIP); }
+		int[] hostWeights = new int[hostIPs.size()];
+		for (int i = 0; i < hostWeights.length; i++)
+		{ 
+			hostWeights[i] = (hostIPs.get(i) == hostIP ? weight 
+					: instance.getHostWeight(i)); 
+		}
+		
+		this.replaceInstance(virtualIP, new LoadBalancerInstance(virtualIP, 
+				instance.getVirtualMAC(), hostIPs, hostWeights, 
+				instance.getOptions()));
+		return true;
+	}
+	
+	/**
+	 * Remove a host from a load balancer instance.
+	 * @param virtualIP the instance's virtual IP
+	 * @param hostIP the host's IP address
+	 * @return false if there is no instance with the virtual IP, or it does
+	 *         not have the host
+	 */
+	@Override
+	public synchronized boolean removeHost(int virtualIP, int hostIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance || instance.indexOfHost(hostIP) < 0)
+		{ return false; }
+		
+		List<Integer> hostIPs = new ArrayList<Integer>();
+		int[] hostWeights = new int[instance.getHostCount() - 1];
+		for (int i = 0; i < instance.getHostCount(); i++)
+		{
+			if (instance.getHostIP(i) == hostIP)
+			{ continue; }
+			hostWeights[hostIPs.size()] = instance.getHostWeight(i);
+			hostIPs.add(instance.getHostIP(i));
+		}
+		
+		this.replaceInstance(virtualIP, new LoadBalancerInstance(virtualIP, 
+				instance.getVirtualMAC(), hostIPs, hostWeights, 
+				instance.getOptions()));
+		return true;
+	}
+	
+	/**
+	 * Add, replace or remove the load balancer instance with a virtual IP,
+	 * and bring every switch's rules up to date in one batch. An instance
+	 * that balances connections the same way as the one it replaces takes
+	 * over its state, and only the rules of the hosts added or removed are
+	 * changed; otherwise the old instance's rules, including its
+	 * connections', are removed and the new instance's installed.
+	 * @param virtualIP the virtual IP
+	 * @param instance the new instance, null to remove the instance
+	 * @return false if there was no instance to remove
+	 * @throws IllegalArgumentException if the new instance shares a host with
+	 *         another instance and both rewrite the host's replies with rules
+	 */
+	private synchronized boolean replaceInstance(int virtualIP, 
+			LoadBalancerInstance instance)
+	{
+		LoadBalancerInstance previous = this.instances.get(virtualIP);
+		if (null == previous && null == instance)
+		{ return false; }
+		if (instance != null)
+		{ this.checkHostRules(instance); }
+		boolean incremental = (previous != null && instance != null
+				&& previous.getMode() == instance.getMode()
+				&& previous.getForwarding() == instance.getForwarding()
+				&& previous.getAffinity() == instance.getAffinity()
+				&& previous.getServicePort() == instance.getServicePort()
+				&& Arrays.equals(previous.getVirtualMAC(), 
+						instance.getVirtualMAC()));
+		
+		SourcePartition.Change change = new SourcePartition.Change();
+		if (incremental)
+		{ instance.inheritState(previous); }
+		if (instance != null 
+				&& instance.getMode() == LoadBalancerInstance.Mode.PROACTIVE)
+		{
+			instance.setPartition((incremental 
+					? previous.getPartition().carryOver(previous, instance, change)
+					: new SourcePartition(instance, this.rebalanceThreshold)));
+		}
+		
+		// Packets are handled by the new instance before its rules are in
+		boolean hadPartitions = this.hasPartitions();
+		boolean wasChecking = !this.healthChecker.isEmpty();
+		if (instance != null)
+		{ this.instances.put(virtualIP, instance); }
+		else
+		{ this.instances.remove(virtualIP); }
+		this.virtualIPs = new VirtualIPTable(this.instances.values());
+		this.admission.setVirtualIPs(this.instances.keySet());
+		this.healthChecker.setInstances(this.instances.values());
+		if (!incremental)
+		{ this.incompletePartitions.remove(virtualIP); }
+		
+		// A new partition is built before hosts that are down are marked down
+		// in the new instance; its rules aren't in yet, so nothing to change
+		if (!incremental && instance != null && instance.getPartition() != null)
+		{ instance.getPartition().evacuate(instance); }
+		
+		Collection<IOFSwitch> switches = 
+				this.floodlightProv.getAllSwitchMap().values();
+		SwitchCommands.beginBatch(batchBarrier);
+		try
+		{
+			for (IOFSwitch sw : switches)
+			{
+				if (incremental)
+				{ this.updateInstanceRules(sw, previous, instance); }
+				else
+				{
+					if (previous != null)
+					{ this.removeInstanceRules(sw, previous); }
+					if (instance != null)
+					{ this.installInstanceRules(sw, instance); }
+				}
+			}
+			if (!change.isEmpty())
+			{ this.applyPartitionChange(switches, instance, change); }
+		}
+		finally
+		{ SwitchCommands.endBatch(); }
+		
+		if (!hadPartitions && this.hasPartitions())
+		{ this.rebalanceTask.reschedule(this.rebalanceInterval, TimeUnit.SECONDS); }
+		if (!wasChecking && !this.healthChecker.isEmpty())
+		{ this.healthTask.reschedule(this.healthInterval, TimeUnit.SECONDS); }
+		
+		if (null == instance)
+		{ log.info("Removed load balancer instance: " + previous); }
+		else
+		{ log.info("Added load balancer instance: " + instance); }
+		return true;
+	}
+	
+	/**
+	 * Check that an instance whose switches rewrite its hosts' replies from
+	 * its service port with one rule per host shares none of those hosts with
+	 * another such instance on the same port, since both instances' rules
+	 * would match the same replies.
+	 * @param instance the load balancer instance
+	 * @throws IllegalArgumentException if it does
+	 */
+	private void checkHostRules(LoadBalancerInstance instance)
+	{
+		if (!instance.hasHostRules())
+		{ return; }
+		for (LoadBalancerInstance other : this.instances.values())
+		{
+			if (other.getVirtualIP() == instance.getVirtualIP() 
+					|| !other.hasHostRules()
+					|| other.getServicePort() != instance.getServicePort())
+			{ continue; }
+			for (int i = 0; i < instance.getHostCount(); i++)
+			{
+				if (other.indexOfHost(instance.getHostIP(i)) >= 0)
+				{
+					throw new IllegalArgumentException(String.format(
+							"Host %s is already in instance %s on port %d", 
+							IPv4.fromIPv4Address(instance.getHostIP(i)),
+							IPv4.fromIPv4Address(other.getVirtualIP()),
+							other.getServicePort() & 0xffff));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check whether any instance is proactive.
+	 */
+	private boolean hasPartitions()
+	{
+		for (LoadBalancerInstance instance : this.instances.values())
+		{
+			if (instance.getPartition() != null)
+			{ return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * Change a switch's rules for an instance replaced by one that balances
+	 * connections the same way: only the rules of hosts that were added or
+	 * removed, and the probe reply rule if health checks were turned on or
+	 * off, change. A removed host's transit rule stays, so its connections
+	 * can drain.
+	 * @param sw the switch
+	 * @param previous the instance being replaced
+	 * @param instance the instance replacing it
+	 */
+	private void updateInstanceRules(IOFSwitch sw, LoadBalancerInstance previous, 
+			LoadBalancerInstance instance){
+		if(0 == previous.getHealthCheckPort() && instance.getHealthCheckPort() != 0){
+			installProbeReplyRule(sw, instance);
+		}
+		else if(previous.getHealthCheckPort() != 0 && 0 == instance.getHealthCheckPort()){
+			SwitchCommands.removeRule(sw, table, PROBE_PRIORITY, buildProbeReplyMatch(previous));
+		}
+		
+		// Only instances balanced by rules on the switch rewrite a host's
+		// replies from the service port with one rule; reactive instances
+		// rewrite them per connection
+		boolean direct = (instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR);
+		boolean hostRules = instance.hasHostRules();
+		if(hostRules){
+			for(int i = 0; i < previous.getHostCount(); i++){
+				if(instance.indexOfHost(previous.getHostIP(i)) < 0){
+					SwitchCommands.removeRule(sw, table, REVERSE_PRIORITY, 
+							buildReverseMatch(previous, previous.getHostIP(i)));
+				}
+			}
+		}
+		for(int i = 0; i < instance.getHostCount(); i++){
+			int hostIP = instance.getHostIP(i);
+			if(previous.indexOfHost(hostIP) >= 0){
+				continue;
+			}
+			if(direct){
+				long hostMAC = getHostMACAddress(hostIP);
+				if(hostMAC != 0){
+					installTransitRule(sw, instance, hostIP, hostMAC);
+				}
+			}
+			else if(hostRules){
+				installReverseRule(sw, instance, i);
+			}
+		}
+		
+		if(instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+			SwitchCommands.installGroup(sw, OFGroupMod.OFPGC_MODIFY, OFGroupMod.OFPGT_SELECT, 
+					instance.getVirtualIP(), buildGroupBuckets(sw, instance));
+		}
+	}
+	
+	/**
+	 * Remove a switch's rules for an instance: every rule for packets to the
+	 * virtual IP, including its connections' rules, the ARP rule, the select
+	 * group, and the rules rewriting replies of hosts no other instance has.
+	 * @param sw the switch
+	 * @param instance the load balancer instance
+	 */
+	private void removeInstanceRules(IOFSwitch sw, LoadBalancerInstance instance){
+		int virtualIP = instance.getVirtualIP();
+		{
+			ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+			matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+			matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, virtualIP));
+			OFMatch ofMatch = new OFMatch();
+			ofMatch.setMatchFields(matchFields);
+			SwitchCommands.removeRules(sw, table, ofMatch);
+		}
+		{
+			ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+			matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_ARP));
+			matchFields.add(new OFMatchField(OFOXMFieldType.ARP_TPA, virtualIP));
+			OFMatch ofMatch = new OFMatch();
+			ofMatch.setMatchFields(matchFields);
+			SwitchCommands.removeRules(sw, table, ofMatch);
+		}
+		if(instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+			SwitchCommands.removeGroup(sw, virtualIP);
+		}
+		
+		if(instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR){
+			return;
+		}
+		for(int i = 0; i < instance.getHostCount(); i++){
+			int hostIP = instance.getHostIP(i);
+			boolean shared = false;
+			for(LoadBalancerInstance other : instances.values()){
+				shared |= (other.getVirtualIP() != virtualIP && other.indexOfHost(hostIP) >= 0);
+			}
+			if(!shared){
+				SwitchCommands.removeRules(sw, table, buildReverseMatch(hostIP));
+			}
 		}
 	}
 	
@@ -221,15 +1425,81 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	public net.floodlightcontroller.core.IListener.Command receive(
 			IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
 	{
-		// We're only interested in packet-in messages
+		// Connection rules that expired tell us the connection has ended
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{ return handleFlowRemoved((OFFlowRemoved)msg); }
+		
+		// Otherwise, we're only interested in packet-in messages
 		if (msg.getType() != OFType.PACKET_IN)
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
 		
-		// Handle the packet
-		Ethernet ethPkt = new Ethernet();
-		ethPkt.deserialize(pktIn.getPacketData(), 0,
-				pktIn.getPacketData().length);
+		// Hand SYNs to virtual IPs to the worker for their flow, if there are
+		// workers; they classify the packet again on their own thread. All of
+		// a client's SYNs to an instance with affinity go to one worker, so
+		// its connections can't race to pick different hosts
+		if (this.workers != null)
+		{
+			PacketHeaders headers = PacketHeaders.classify(pktIn, cntx);
+			LoadBalancerInstance instance = (headers.isTCPSyn() 
+					? this.virtualIPs.get(headers.getDestinationIP()) : null);
+			if (instance != null)
+			{
+				int hash = (LoadBalancerInstance.Affinity.NONE 
+						== instance.getAffinity() ? headers.getFlowHash() 
+						: headers.getAddressHash());
+				this.workers.dispatch(hash, sw, pktIn);
+				return Command.CONTINUE;
+			}
+		}
+		
+		// Send all rules and packets for this packet-in in one batch
+		SwitchCommands.beginBatch(batchBarrier);
+		try {
+			return handlePacketIn(sw, pktIn, cntx);
+		}
+		finally {
+			SwitchCommands.endBatch();
+		}
+	}
+	
+	/**
+	 * Handle a packet-in on a worker thread.
+	 * @param sw switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 */
+	private void handleWorkerPacketIn(IOFSwitch sw, OFPacketIn pktIn)
+	{
+		SwitchCommands.beginBatch(batchBarrier);
+		try
+		{ this.handlePacketIn(sw, pktIn, null); }
+		catch (RuntimeException e)
+		{ log.error("Failed to handle packet-in", e); }
+		finally
+		{ SwitchCommands.endBatch(); }
+	}
+	
+	/**
+	 * Handle a packet-in sent from a switch.
+	 * @param sw switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @param cntx the Floodlight context in which the message should be 
+	 *         handled, null if it is handled on a worker thread
+	 * @return indication whether another module should also process the packet
+	 */
+	private net.floodlightcontroller.core.IListener.Command handlePacketIn(
+			IOFSwitch sw, OFPacketIn pktIn, FloodlightContext cntx)
+	{
+		// Classify the packet without deserializing it
+		PacketHeaders headers = PacketHeaders.classify(pktIn, cntx);
+		
+		// Replies to health checks look like traffic from hosts, including
+		// SYNs, so pick them out first
+		LoadBalancerInstance probedInstance = virtualIPs.get(headers.getDestinationIP());
+		if(SynProber.isReply(headers, probedInstance)){
+			SynProber.handleReply(healthChecker, probedInstance, headers, sw, pktIn.getInPort());
+			return Command.STOP;
+		}
 		
 		/*********************************************************************/
 		/* TODO: Send an ARP reply for ARP requests for virtual IPs; for TCP */
@@ -238,119 +1508,98 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       ignore all other packets                                    */
 		
 		/*********************************************************************/
-		if(ethPkt.getEtherType() == Ethernet.TYPE_IPv4){
-			IPv4 ipv4Pkt = (IPv4)ethPkt.getPayload();
-			if(ipv4Pkt.getProtocol() == IPv4.PROTOCOL_TCP){
-				TCP tcpPkt = (TCP) ipv4Pkt.getPayload();
-				
-				if((tcpPkt.getFlags() & TCP_FLAG_SYN) != 0){
-					int virtualIP = ipv4Pkt.getDestinationAddress();
-					int srcIP = ipv4Pkt.getSourceAddress();
-					
-					if(!isVirtualIP(virtualIP)){
-						return Command.CONTINUE;
-					}
-					
-					int srcPort = tcpPkt.getSourcePort();
-					int dstPort = tcpPkt.getDestinationPort();
-					
-					int hostIP = instances.get(virtualIP).getNextHostIP();
-					byte[] hostMAC = getHostMACAddress(hostIP);
-					
-					if(DEBUG){
-						System.out.println("***TCP SYN recieved for virtual IP " + IPv4.fromIPv4Address(virtualIP));
-						System.out.println("Assigned host with IP " + IPv4.fromIPv4Address(hostIP));
-					}
-					
-					{
-						OFMatchField fieldEthTypeIP = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
-						OFMatchField fieldSrcIP = new OFMatchField(OFOXMFieldType.IPV4_SRC, srcIP);
-						OFMatchField fieldDstIP = new OFMatchField(OFOXMFieldType.IPV4_DST, virtualIP);
-						OFMatchField fieldProto = new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP);
-						OFMatchField fieldSrcTCP = new OFMatchField(OFOXMFieldType.TCP_SRC, srcPort);
-						OFMatchField fieldDstTCP = new OFMatchField(OFOXMFieldType.TCP_DST, dstPort);
-						
-						ArrayList<OFMatchField> matchFieldsIPPackets = new ArrayList<OFMatchField>();
-						matchFieldsIPPackets.add(fieldEthTypeIP);
-						matchFieldsIPPackets.add(fieldSrcIP);
-						matchFieldsIPPackets.add(fieldDstIP);
-						matchFieldsIPPackets.add(fieldProto);
-						matchFieldsIPPackets.add(fieldSrcTCP);
-						matchFieldsIPPackets.add(fieldDstTCP);
-						
-						OFMatch ofMatchIP = new OFMatch();
-						ofMatchIP.setMatchFields(matchFieldsIPPackets);
-						
-						ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
-						ofActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC));
-						ofActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP));
-						OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
-						
-						OFInstructionGotoTable ofInstructionGotoTable = new OFInstructionGotoTable();
-						ofInstructionGotoTable.setTableId(L3Routing.table);
-						
-						ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
-						listOfInstructions.add(applyActions);
-						listOfInstructions.add(ofInstructionGotoTable);
-	
-						SwitchCommands.installRule(sw, table, (short)(SwitchCommands.DEFAULT_PRIORITY + 1), ofMatchIP, listOfInstructions,
-								SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
-					}
-					{
-						OFMatchField fieldEthTypeIP = new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4);
-						OFMatchField fieldSrcIP = new OFMatchField(OFOXMFieldType.IPV4_SRC, hostIP);
-						OFMatchField fieldDstIP = new OFMatchField(OFOXMFieldType.IPV4_DST, srcIP);
-						OFMatchField fieldProto = new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP);
-						OFMatchField fieldSrcTCP = new OFMatchField(OFOXMFieldType.TCP_SRC, dstPort);
-						OFMatchField fieldDstTCP = new OFMatchField(OFOXMFieldType.TCP_DST, srcPort);
-						
-						ArrayList<OFMatchField> matchFieldsIPPackets = new ArrayList<OFMatchField>();
-						matchFieldsIPPackets.add(fieldEthTypeIP);
-						matchFieldsIPPackets.add(fieldSrcIP);
-						matchFieldsIPPackets.add(fieldDstIP);
-						matchFieldsIPPackets.add(fieldProto);
-						matchFieldsIPPackets.add(fieldSrcTCP);
-						matchFieldsIPPackets.add(fieldDstTCP);
-						
-						OFMatch ofMatchIP = new OFMatch();
-						ofMatchIP.setMatchFields(matchFieldsIPPackets);
-						
-						ArrayList<OFAction> ofActions = new ArrayList <OFAction>();
-						ofActions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, instances.get(virtualIP).getVirtualMAC()));
-						ofActions.add(new OFActionSetField(OFOXMFieldType.IPV4_SRC, virtualIP));
-						OFInstructionApplyActions applyActions = new OFInstructionApplyActions(ofActions);
-
-						OFInstructionGotoTable ofInstructionGotoTable = new OFInstructionGotoTable();
-						ofInstructionGotoTable.setTableId(L3Routing.table);
-
-						ArrayList<OFInstruction> listOfInstructions = new ArrayList<OFInstruction>();
-						listOfInstructions.add(applyActions);
-						listOfInstructions.add(ofInstructionGotoTable);
-	
-						SwitchCommands.installRule(sw, table, (short)(SwitchCommands.DEFAULT_PRIORITY + 1), ofMatchIP, listOfInstructions,
-								SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
-					}
+		if(headers.isTCPSyn()){
+			int virtualIP = headers.getDestinationIP();
+			int srcIP = headers.getSourceIP();
+			
+			LoadBalancerInstance instance = virtualIPs.get(virtualIP);
+			if(null == instance){
+				return Command.CONTINUE;
+			}
+			
+			if(instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+				return Command.CONTINUE;
+			}
+			
+			// With source affinity, a client's connections are tracked as one with
+			// no ports, and a client that already has a host keeps it
+			boolean affinity = (instance.getAffinity() == LoadBalancerInstance.Affinity.SOURCE);
+			short connectionSrcPort = (affinity ? 0 : headers.getSourcePort());
+			short connectionDstPort = (affinity ? 0 : headers.getDestinationPort());
+			boolean direct = (instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR);
+			
+			// A SYN retransmitted before the connection's rules reach the switch
+			// goes to the host picked for the first one, without new rules
+			int pendingHostIP = pendingConnections.get(srcIP, virtualIP, 
+					connectionSrcPort, connectionDstPort);
+			if(pendingHostIP != 0){
+				long hostMAC = getHostMACAddress(pendingHostIP);
+				if(hostMAC != 0){
+					resubmitPacket(sw, pktIn, headers, pendingHostIP, hostMAC, direct);
+				}
+				return Command.CONTINUE;
+			}
+			
+			// Don't install rules for a flood of SYNs; keep a flooding source's
+			// SYNs from reaching the controller at all for a while
+			switch(admission.admit(srcIP, virtualIP)){
+			case DROP_SOURCE:
+				log.warn(String.format("Blocking %s after too many SYNs to %s", 
+						IPv4.fromIPv4Address(srcIP), IPv4.fromIPv4Address(virtualIP)));
+				installBlockRule(sw, srcIP, virtualIP);
+				return Command.STOP;
+			case DROP_VIRTUAL:
+				return Command.STOP;
+			default:
+				break;
+			}
+			
+			// A client whose rules idled out comes back to the same host too
+			int pinnedHostIP = 0;
+			if(affinity){
+				pinnedHostIP = connections.get(srcIP, virtualIP, (short)0, (short)0);
+				if(0 == pinnedHostIP){
+					pinnedHostIP = assignments.get(srcIP, virtualIP, (short)0, (short)0);
 				}
 			}
+			int pinnedHostIndex = instance.indexOfHost(pinnedHostIP);
+			
+			// A proactive instance's connections go where the client's prefix does,
+			// so they stay put once the prefix rule is installed
+			int hostIndex;
+			if(instance.getMode() == LoadBalancerInstance.Mode.PROACTIVE){
+				hostIndex = instance.getPartition().getHost(srcIP);
+			}
+			else if(pinnedHostIndex >= 0 && instance.isHostAvailable(pinnedHostIndex)){
+				hostIndex = pinnedHostIndex;
+			}
+			else{
+				hostIndex = instance.selectHost(srcIP, headers.getSourcePort(), 
+						headers.getDestinationPort());
+			}
+			assignConnection(sw, pktIn, headers, instance, hostIndex);
+		}
+		else if(headers.isTCP()){
+			recoverConnection(sw, pktIn, headers);
 		}
-		if(ethPkt.getEtherType() == Ethernet.TYPE_ARP){
-			ARP arpPkt = (ARP) ethPkt.getPayload();
-			int virtualIP = IPv4.toIPv4Address(arpPkt.getTargetProtocolAddress());
+		if(headers.isARPRequest()){
+			int virtualIP = headers.getARPTargetIP();
 
-			if((arpPkt.getOpCode() == ARP.OP_REQUEST) && isVirtualIP(virtualIP)){
+			LoadBalancerInstance instance = virtualIPs.get(virtualIP);
+			if(instance != null){
 
 				if(DEBUG){
 					System.out.println("***ARP recieved for virtual IP " + IPv4.fromIPv4Address(virtualIP));
 				}
 
-				byte[] virtualMAC = instances.get(virtualIP).getVirtualMAC();
+				byte[] virtualMAC = instance.getVirtualMAC();
 	
 				Ethernet etherSendPacket = new Ethernet();
 				ARP arpSendPacket = new ARP();
 				
 				etherSendPacket.setEtherType(Ethernet.TYPE_ARP);
 				etherSendPacket.setSourceMACAddress(virtualMAC);
-				etherSendPacket.setDestinationMACAddress(ethPkt.getSourceMACAddress());
+				etherSendPacket.setDestinationMACAddress(MACAddress.valueOf(headers.getSourceMAC()).toBytes());
 				
 				arpSendPacket.setHardwareType(ARP.HW_TYPE_ETHERNET);
 				arpSendPacket.setProtocolType(ARP.PROTO_TYPE_IP);
@@ -359,8 +1608,8 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 				arpSendPacket.setOpCode(ARP.OP_REPLY);
 				arpSendPacket.setSenderHardwareAddress(virtualMAC);
 				arpSendPacket.setSenderProtocolAddress(virtualIP);
-				arpSendPacket.setTargetHardwareAddress(arpPkt.getSenderHardwareAddress());
-				arpSendPacket.setTargetProtocolAddress(arpPkt.getSenderProtocolAddress());
+				arpSendPacket.setTargetHardwareAddress(MACAddress.valueOf(headers.getARPSenderMAC()).toBytes());
+				arpSendPacket.setTargetProtocolAddress(IPv4.toIPv4AddressBytes(headers.getARPSenderIP()));
 				
 				etherSendPacket.setPayload(arpSendPacket);
 				
@@ -381,30 +1630,340 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		return Command.CONTINUE;
 	}
 	
+	/**
+	 * Assign a connection to a virtual IP to a host: install the rules for
+	 * the connection, or for all of the client's connections with source
+	 * affinity, and send the packet that reached the controller on to the
+	 * host.
+	 * @param sw the switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @param headers the packet's headers
+	 * @param instance the load balancer instance
+	 * @param hostIndex the index of the host within the instance
+	 */
+	private void assignConnection(IOFSwitch sw, OFPacketIn pktIn, PacketHeaders headers,
+			LoadBalancerInstance instance, int hostIndex){
+		int virtualIP = instance.getVirtualIP();
+		int srcIP = headers.getSourceIP();
+		int srcPort = headers.getSourcePort();
+		int dstPort = headers.getDestinationPort();
+		boolean affinity = (instance.getAffinity() == LoadBalancerInstance.Affinity.SOURCE);
+		short connectionSrcPort = (affinity ? 0 : headers.getSourcePort());
+		short connectionDstPort = (affinity ? 0 : headers.getDestinationPort());
+		boolean direct = (instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR);
+		
+		int hostIP = instance.getHostIP(hostIndex);
+		long hostMAC = getHostMACAddress(hostIP);
+		if(0 == hostMAC){
+			log.warn("Unknown MAC address for host " + IPv4.fromIPv4Address(hostIP));
+			return;
+		}
+		
+		// With direct server return, the host has the virtual IP too, so the
+		// packet is sent straight out the port towards the host, and
+		// switches on the way forward it by the host's MAC address
+		int outPort = 0;
+		if(direct){
+			Integer port = l3RoutingProv.getOutPort(sw.getId(), hostIP);
+			if(null == port){
+				log.warn("Unknown route to host " + IPv4.fromIPv4Address(hostIP));
+				return;
+			}
+			outPort = port;
+			if(instance.updateTransitMAC(hostIndex, hostMAC)){
+				for(IOFSwitch transitSw : floodlightProv.getAllSwitchMap().values()){
+					installTransitRule(transitSw, instance, hostIP, hostMAC);
+				}
+			}
+		}
+		
+		if(DEBUG){
+			System.out.println("***Connection recieved for virtual IP " + IPv4.fromIPv4Address(virtualIP));
+			System.out.println("Assigned host with IP " + IPv4.fromIPv4Address(hostIP));
+		}
+		
+		// A retransmitted SYN or a recovered connection replaces the
+		// connection's earlier assignment. A connection the full table could
+		// not hold is never counted, since its end would never be seen
+		int previousHostIP = connections.put(srcIP, virtualIP, 
+				connectionSrcPort, connectionDstPort, hostIP);
+		if(previousHostIP != ConnectionTable.FULL){
+			instance.connectionOpened(hostIndex);
+		}
+		if(previousHostIP != 0 && instance.indexOfHost(previousHostIP) >= 0){
+			instance.connectionClosed(instance.indexOfHost(previousHostIP));
+		}
+		
+		// Install the reverse rule first, so the backend's SYN-ACK never
+		// races ahead of it; replies need no rewriting with direct server return.
+		// With affinity, the rules cover all of the client's connections to the
+		// virtual port, so only replies from that port are rewritten
+		int clientPort = (affinity ? 0 : srcPort);
+		if(!direct){
+			SwitchCommands.installRule(sw, getReverseRule(instance).build(
+					hostIP, srcIP, dstPort, clientPort, OFPacketOut.BUFFER_ID_NONE));
+		}
+		
+		// Release the buffered packet through the new rule, if the switch buffered it
+		ConnectionRuleTemplate forwardRule = getForwardRule(instance, hostIndex, hostMAC, sw, outPort);
+		SwitchCommands.installRule(sw, forwardRule.build(
+				srcIP, virtualIP, clientPort, dstPort, pktIn.getBufferId()));
+		
+		pendingConnections.put(srcIP, virtualIP, connectionSrcPort, 
+				connectionDstPort, hostIP);
+		
+		// The switch did not buffer the packet, so rewrite it ourselves
+		if(pktIn.getBufferId() == OFPacketOut.BUFFER_ID_NONE){
+			resubmitPacket(sw, pktIn, headers, hostIP, hostMAC, direct);
+		}
+	}
+	
+	/**
+	 * Handle a packet in the middle of a connection to a virtual IP, which
+	 * reaches the controller once the connection's rules idle out. If the
+	 * connection's host is still known, the rules are installed again and
+	 * the packet sent on, so the connection survives being idle.
+	 * @param sw the switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @param headers the packet's headers
+	 */
+	private void recoverConnection(IOFSwitch sw, OFPacketIn pktIn, PacketHeaders headers){
+		LoadBalancerInstance instance = virtualIPs.get(headers.getDestinationIP());
+		if(null == instance || instance.getMode() == LoadBalancerInstance.Mode.GROUP){
+			return;
+		}
+		int virtualIP = instance.getVirtualIP();
+		int srcIP = headers.getSourceIP();
+		boolean affinity = (instance.getAffinity() == LoadBalancerInstance.Affinity.SOURCE);
+		short connectionSrcPort = (affinity ? 0 : headers.getSourcePort());
+		short connectionDstPort = (affinity ? 0 : headers.getDestinationPort());
+		
+		// Packets that arrive before the reinstalled rules reach the switch
+		// only need passing on
+		int pendingHostIP = pendingConnections.get(srcIP, virtualIP, 
+				connectionSrcPort, connectionDstPort);
+		if(pendingHostIP != 0){
+			long hostMAC = getHostMACAddress(pendingHostIP);
+			if(hostMAC != 0){
+				resubmitPacket(sw, pktIn, headers, pendingHostIP, hostMAC, 
+						instance.getForwarding() == LoadBalancerInstance.Forwarding.DSR);
+			}
+			return;
+		}
+		
+		// The flow-removed message may not have been handled yet; either way
+		// the connection keeps its host, even one that is down and draining
+		int hostIP = connections.get(srcIP, virtualIP, connectionSrcPort, connectionDstPort);
+		if(0 == hostIP){
+			hostIP = assignments.get(srcIP, virtualIP, connectionSrcPort, connectionDstPort);
+		}
+		int hostIndex = instance.indexOfHost(hostIP);
+		if(hostIndex < 0){
+			return;
+		}
+		if(DEBUG){
+			System.out.println("***Recovering connection to virtual IP " + IPv4.fromIPv4Address(virtualIP));
+		}
+		assignConnection(sw, pktIn, headers, instance, hostIndex);
+	}
+	
+	/**
+	 * Rewrite a packet for the host its connection is assigned to, and hand
+	 * it back to the switch's pipeline. A packet the switch buffered is only
+	 * partly here, so it is released from the buffer instead, to go through
+	 * the connection's rules, which were sent to the switch before it. A
+	 * packet that was cut short but not buffered is dropped, and the client
+	 * retransmits it through the rules.
+	 * @param sw the switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @param headers the packet's headers
+	 * @param hostIP the host's IP address
+	 * @param hostMAC the host's MAC address
+	 * @param direct whether the instance uses direct server return, so only
+	 *         the destination MAC address is rewritten
+	 */
+	private void resubmitPacket(IOFSwitch sw, OFPacketIn pktIn, PacketHeaders headers,
+			int hostIP, long hostMAC, boolean direct){
+		if(pktIn.getBufferId() != OFPacketOut.BUFFER_ID_NONE){
+			SwitchCommands.releasePacketToTable(sw, pktIn.getInPort(), pktIn.getBufferId());
+			return;
+		}
+		if((pktIn.getTotalLength() & 0xffff) > pktIn.getPacketData().length){
+			return;
+		}
+		Ethernet ethPkt = headers.deserialize();
+		IPv4 ipv4Pkt = (IPv4)ethPkt.getPayload();
+		TCP tcpPkt = (TCP)ipv4Pkt.getPayload();
+		ethPkt.setDestinationMACAddress(MACAddress.valueOf(hostMAC).toBytes());
+		if(!direct){
+			ipv4Pkt.setDestinationAddress(hostIP);
+			ipv4Pkt.resetChecksum();
+			tcpPkt.resetChecksum();
+		}
+		SwitchCommands.sendPacketToTable(sw, pktIn.getInPort(), ethPkt);
+	}
+	
+	/**
+	 * Install a rule dropping a source's packets to a virtual IP that would
+	 * otherwise be sent to the controller, for blockTimeout seconds. The
+	 * rule is below connection rules, so the source's established
+	 * connections are unaffected.
+	 * @param sw the switch
+	 * @param srcIP the source's IP address
+	 * @param virtualIP the virtual IP address
+	 */
+	private void installBlockRule(IOFSwitch sw, int srcIP, int virtualIP){
+		ArrayList<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+		matchFields.add(new OFMatchField(OFOXMFieldType.ETH_TYPE, Ethernet.TYPE_IPv4));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IP_PROTO, IPv4.PROTOCOL_TCP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_SRC, srcIP));
+		matchFields.add(new OFMatchField(OFOXMFieldType.IPV4_DST, virtualIP));
+		OFMatch ofMatch = new OFMatch();
+		ofMatch.setMatchFields(matchFields);
+		
+		// No instructions, so matching packets are dropped
+		SwitchCommands.installRule(sw, table, BLOCK_PRIORITY, ofMatch, 
+				new ArrayList<OFInstruction>(), blockTimeout, SwitchCommands.NO_TIMEOUT);
+	}
+	
+	/**
+	 * Handle a rule that was removed from a switch. If it was a connection's
+	 * forward rule, the connection is over.
+	 * @param flowRemoved the flow-removed message
+	 * @return indication whether another module should also process the message
+	 */
+	private net.floodlightcontroller.core.IListener.Command handleFlowRemoved(
+			OFFlowRemoved flowRemoved)
+	{
+		if (flowRemoved.getCookie() != ConnectionRuleTemplate.FORWARD_COOKIE)
+		{ return Command.CONTINUE; }
+		
+		// Recover the connection from the rule's match; rules for all of a
+		// client's connections have no ports
+		int clientIP = 0;
+		int virtualIP = 0;
+		short clientPort = 0;
+		short virtualPort = 0;
+		for (OFMatchField field : flowRemoved.getMatch().getMatchFields())
+		{
+			int value = ((Number)field.getValue()).intValue();
+			switch (field.getType())
+			{
+			case IPV4_SRC:
+				clientIP = value;
+				break;
+			case IPV4_DST:
+				virtualIP = value;
+				break;
+			case TCP_SRC:
+				clientPort = (short)value;
+				break;
+			case TCP_DST:
+				virtualPort = (short)value;
+				break;
+			default:
+				break;
+			}
+		}
+		
+		// A client with affinity is tracked as one connection, though each
+		// virtual port it uses has its own rules
+		LoadBalancerInstance instance = this.virtualIPs.get(virtualIP);
+		if (instance != null 
+				&& instance.getAffinity() == LoadBalancerInstance.Affinity.SOURCE)
+		{ virtualPort = 0; }
+		int hostIP = this.connections.remove(clientIP, virtualIP, clientPort, 
+				virtualPort);
+		if (0 == hostIP || null == instance)
+		{ return Command.STOP; }
+		int hostIndex = instance.indexOfHost(hostIP);
+		if (hostIndex >= 0)
+		{ instance.connectionClosed(hostIndex); }
+		
+		// The connection may only have been idle, so remember its host
+		this.assignments.put(clientIP, virtualIP, clientPort, virtualPort, 
+				hostIP);
+		return Command.STOP;
+	}
+	
 	/**
 	 * Returns the MAC address for a host, given the host's IP address.
 	 * @param hostIPAddress the host's IP address
-	 * @return the hosts's MAC address, null if unknown
+	 * @return the hosts's MAC address, 0 if unknown
 	 */
-	private byte[] getHostMACAddress(int hostIPAddress)
+	private long getHostMACAddress(int hostIPAddress)
+	{ return this.hostAddressProv.getMACAddress(hostIPAddress); }
+	
+	/**
+	 * Get the precompiled rule sending clients of a load balancer instance to
+	 * a host, (re)building it if the host's MAC address or the port towards
+	 * it has changed. Rules for direct server return are kept per switch,
+	 * since each switch reaches the host out a different port.
+	 * @param instance the load balancer instance
+	 * @param hostIndex the index of the host within the instance
+	 * @param hostMAC the host's current MAC address
+	 * @param sw the switch the rule is for
+	 * @param outPort the port out which the switch reaches the host, for
+	 *         direct server return; 0 otherwise
+	 */
+	private ConnectionRuleTemplate getForwardRule(LoadBalancerInstance instance,
+			int hostIndex, long hostMAC, IOFSwitch sw, int outPort)
 	{
-		Iterator<? extends IDevice> iterator = this.deviceProv.queryDevices(
-				null, null, hostIPAddress, null, null);
-		if (!iterator.hasNext())
-		{ return null; }
-		IDevice device = iterator.next();
-		return MACAddress.valueOf(device.getMACAddress()).toBytes();
+		if (outPort != 0)
+		{
+			ConnectionRuleTemplate rule = instance.getDirectRule(hostIndex, 
+					sw.getId());
+			if (null == rule || rule.getRewriteMAC() != hostMAC 
+					|| rule.getOutPort() != outPort)
+			{
+				rule = ConnectionRuleTemplate.direct(this.table, 
+						getConnectionPriority(instance), IDLE_TIMEOUT, hostMAC,
+						outPort);
+				instance.setDirectRule(hostIndex, sw.getId(), rule);
+			}
+			return rule;
+		}
+		
+		ConnectionRuleTemplate rule = instance.getForwardRule(hostIndex);
+		if (null == rule || rule.getRewriteMAC() != hostMAC)
+		{
+			rule = ConnectionRuleTemplate.forward(this.table, 
+					getConnectionPriority(instance), IDLE_TIMEOUT, 
+					L3Routing.table, instance.getHostIP(hostIndex), hostMAC);
+			instance.setForwardRule(hostIndex, rule);
+		}
+		return rule;
 	}
 	
-	private boolean isVirtualIP(int ip){
-		for(int virtualIP : instances.keySet()){
-			if(virtualIP== ip){
-				return true;
-			}
+	/**
+	 * Get the precompiled rule making replies from the hosts of a load
+	 * balancer instance appear to come from its virtual IP.
+	 * @param instance the load balancer instance
+	 */
+	private ConnectionRuleTemplate getReverseRule(LoadBalancerInstance instance)
+	{
+		ConnectionRuleTemplate rule = instance.getReverseRule();
+		if (null == rule)
+		{
+			rule = ConnectionRuleTemplate.reverse(this.table, 
+					getConnectionPriority(instance), IDLE_TIMEOUT, 
+					L3Routing.table, instance.getVirtualIP(), 
+					instance.getVirtualMAC());
+			instance.setReverseRule(rule);
 		}
-		return false;
+		return rule;
 	}
-
+	
+	/**
+	 * Get the priority of the connection rules of a load balancer instance.
+	 * @param instance the load balancer instance
+	 */
+	private static short getConnectionPriority(LoadBalancerInstance instance)
+	{
+		return (instance.getAffinity() == LoadBalancerInstance.Affinity.SOURCE
+				? AFFINITY_PRIORITY : CONNECTION_PRIORITY);
+	}
+	
 	/**
 	 * Event handler called when a switch leaves the network.
 	 * @param DPID for the switch
@@ -446,7 +2005,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(ILoadBalancerService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -454,7 +2018,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, IFloodlightService>();
+		services.put(ILoadBalancerService.class, this);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -466,7 +2035,9 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		Collection<Class<? extends IFloodlightService >> floodlightService =
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
-        floodlightService.add(IDeviceService.class);
+        floodlightService.add(IHostAddressService.class);
+        floodlightService.add(IL3RoutingService.class);
+        floodlightService.add(IThreadPoolService.class);
         return floodlightService;
 	}
 
@@ -1,13 +1,90 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
 public class LoadBalancerInstance 
 {
+	public static final int DEFAULT_WEIGHT = 1;
+	
+	public static final short DEFAULT_SERVICE_PORT = 80;
+	
+	// Name of the option that selects the host selection strategy
+	public static final String OPTION_STRATEGY = "strategy";
+	
+	// Name of the option that selects how connections are balanced
+	public static final String OPTION_MODE = "mode";
+	
+	// Name of the option that sets the TCP port on which hosts are checked
+	public static final String OPTION_CHECK = "check";
+	
+	// Name of the option that selects how packets reach hosts and return
+	public static final String OPTION_FORWARDING = "forwarding";
+	
+	// Name of the option that selects which connections share a host
+	public static final String OPTION_AFFINITY = "affinity";
+	
+	// Name of the option that sets the TCP port on which hosts serve clients
+	public static final String OPTION_PORT = "port";
+	
+	// Names of all options an instance accepts
+	private static final List<String> OPTIONS = Arrays.asList(OPTION_STRATEGY,
+			OPTION_MODE, OPTION_CHECK, OPTION_FORWARDING, OPTION_AFFINITY,
+			OPTION_PORT);
+	
+	// Spacing of the hosts' connection counters, so each is on its own cache
+	// line and threads counting different hosts don't contend
+	private static final int COUNTER_STRIDE = 16;
+	
+	/**
+	 * How connections to an instance are balanced.
+	 */
+	public enum Mode
+	{
+		/** The controller selects a host for each new connection */
+		REACTIVE,
+		/** The switches select a host with a select group */
+		GROUP,
+		/** Rules installed up front send each client prefix to a host */
+		PROACTIVE
+	}
+	
+	/**
+	 * How packets of connections to an instance reach hosts and return.
+	 */
+	public enum Forwarding
+	{
+		/** The destination is rewritten to the host, and the source of its
+		 *  replies back to the virtual IP */
+		NAT,
+		/** Hosts have the virtual IP too, so only the destination MAC
+		 *  address is rewritten and replies go straight to clients */
+		DSR
+	}
+	
+	/**
+	 * Which connections to an instance are pinned to the same host.
+	 */
+	public enum Affinity
+	{
+		/** Each connection gets its own host and rules */
+		NONE,
+		/** All connections from a client go to one host, through rules
+		 *  matching only the client's and the virtual IP address */
+		SOURCE
+	}
+	
 	// Virtual IP for this load balancer instance
 	private int virtualIP;
 	
@@ -17,39 +94,236 @@ public class LoadBalancerInstance
 	// IPs for the hosts to which a flow could be sent
 	private List<Integer> hostIPs;
 	
-	// The index for the last host to which a flow was sent;
-	private int lastHost;
+	// Relative capacity of each host
+	private int[] hostWeights;
+	
+	// Number of connections currently assigned to each host, every
+	// COUNTER_STRIDE elements
+	private AtomicIntegerArray activeConnections;
+	
+	// Policy for choosing the host for a new connection
+	private SelectionStrategy strategy;
+	
+	// How connections to this instance are balanced
+	private Mode mode;
+	
+	// How packets reach hosts and return
+	private Forwarding forwarding;
+	
+	// Which connections are pinned to the same host
+	private Affinity affinity;
+	
+	// Precompiled rules sending clients to each host, built on first use
+	private AtomicReferenceArray<ConnectionRuleTemplate> forwardRules;
+	
+	// Precompiled rules sending clients straight out the port towards each
+	// host, for direct server return; the port differs between switches, so
+	// each host has a rule per switch, keyed by DPID
+	private List<ConcurrentMap<Long,ConnectionRuleTemplate>> directRules;
+	
+	// Precompiled rule making hosts' replies come from the virtual IP
+	private volatile ConnectionRuleTemplate reverseRule;
+	
+	// MAC address of each host for which switches have rules forwarding
+	// packets to the virtual IP by MAC address, for direct server return; 0
+	// if they have none
+	private AtomicLongArray transitMACs;
+	
+	// Division of client addresses among hosts, in proactive mode
+	private SourcePartition partition;
+	
+	// TCP port on which hosts' health is checked, 0 if it is not checked
+	private short healthCheckPort;
+	
+	// TCP port on which hosts serve clients; switches balancing connections
+	// with rules only handle this port, and only rewrite replies from it
+	private short servicePort;
+	
+	// Whether each host passes its health checks
+	private boolean[] hostsUp;
+	
+	// Indexes of the hosts new connections may go to, and whether each host
+	// is one of them; replaced whenever a host goes up or down
+	private volatile int[] availableHosts;
+	private volatile boolean[] hostsAvailable;
 	
 	/**
-	 * Create a load balancer instance.
+	 * Create a load balancer instance that uses round-robin.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced
 	 */
-	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC, 
+	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC,
 			List<Integer> hostIPs)
+	{ this(virtualIP, virtualMAC, hostIPs, null, parseOptions(new String[0])); }
+	
+	/**
+	 * Create a load balancer instance.
+	 * @param virtualIP virtual IP address for the load balancer instance
+	 * @param virtualMAC virtual MAC address for the load balancer instances
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param hostWeights relative capacity of each host; null if all hosts
+	 *         have the same capacity
+	 * @param options the instance's options, by name
+	 */
+	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC,
+			List<Integer> hostIPs, int[] hostWeights, 
+			Map<String,String> options)
 	{
+		if (hostIPs.isEmpty())
+		{ throw new IllegalArgumentException("No hosts"); }
 		this.virtualIP = virtualIP;
 		this.virtualMAC = virtualMAC;
 		this.hostIPs = hostIPs;
-		this.lastHost = -1;
+		if (null == hostWeights)
+		{
+			hostWeights = new int[hostIPs.size()];
+			Arrays.fill(hostWeights, DEFAULT_WEIGHT);
+		}
+		this.hostWeights = hostWeights;
+		this.activeConnections = new AtomicIntegerArray(
+				hostIPs.size() * COUNTER_STRIDE);
+		this.forwardRules = new AtomicReferenceArray<ConnectionRuleTemplate>(
+				hostIPs.size());
+		this.directRules = 
+				new ArrayList<ConcurrentMap<Long,ConnectionRuleTemplate>>();
+		for (int i = 0; i < hostIPs.size(); i++)
+		{ 
+			this.directRules.add(
+					new ConcurrentHashMap<Long,ConnectionRuleTemplate>()); 
+		}
+		this.mode = parseMode(options.get(OPTION_MODE));
+		this.forwarding = parseForwarding(options.get(OPTION_FORWARDING));
+		this.transitMACs = new AtomicLongArray(hostIPs.size());
+		this.affinity = parseAffinity(options.get(OPTION_AFFINITY));
+		
+		// Only the controller picks hosts per client
+		if (this.affinity != Affinity.NONE && this.mode != Mode.REACTIVE)
+		{
+			throw new IllegalArgumentException(
+					"Affinity needs mode=reactive");
+		}
+		this.healthCheckPort = parsePort(options.get(OPTION_CHECK));
+		this.servicePort = parsePort(options.get(OPTION_PORT));
+		
+		// Probes come from the virtual IP, which hosts would answer locally
+		if (this.healthCheckPort != 0 && Forwarding.DSR == this.forwarding)
+		{ 
+			throw new IllegalArgumentException(
+					"Health checks need forwarding=nat"); 
+		}
+		this.hostsUp = new boolean[hostIPs.size()];
+		Arrays.fill(this.hostsUp, true);
+		this.updateAvailableHosts();
+		this.strategy = SelectionStrategies.create(options.get(OPTION_STRATEGY));
+		this.strategy.reset(this);
 	}
 	
 	/**
-	 * Create a load balancer instance.
+	 * Create a load balancer instance that uses round-robin.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced
 	 */
 	public LoadBalancerInstance(String virtualIP, String virtualMAC,
 			String[] hostIPs)
+	{ this(virtualIP, virtualMAC, hostIPs, new String[0]); }
+	
+	/**
+	 * Create a load balancer instance.
+	 * @param virtualIP virtual IP address for the load balancer instance
+	 * @param virtualMAC virtual MAC address for the load balancer instances
+	 * @param hostIPs IPs for hosts to which requests should be balanced, each
+	 *         optionally followed by a colon and the host's weight
+	 * @param options options of the form name=value
+	 */
+	public LoadBalancerInstance(String virtualIP, String virtualMAC,
+			String[] hostIPs, String[] options)
+	{
+		this(IPv4.toIPv4Address(virtualIP),
+				MACAddress.valueOf(virtualMAC).toBytes(),
+				parseHostIPs(hostIPs), parseHostWeights(hostIPs),
+				parseOptions(options));
+	}
+	
+	private static List<Integer> parseHostIPs(String[] hostIPs)
 	{
-		this.virtualIP = IPv4.toIPv4Address(virtualIP);
-		this.virtualMAC = MACAddress.valueOf(virtualMAC).toBytes();
-		this.hostIPs = new ArrayList<Integer>();
+		List<Integer> result = new ArrayList<Integer>();
 		for (String hostIP : hostIPs)
-		{ this.hostIPs.add(IPv4.toIPv4Address(hostIP)); }
-		this.lastHost = -1;
+		{ result.add(IPv4.toIPv4Address(hostIP.split(":")[0])); }
+		return result;
+	}
+	
+	private static int[] parseHostWeights(String[] hostIPs)
+	{
+		int[] result = new int[hostIPs.length];
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			String[] items = hostIPs[i].split(":");
+			result[i] = (items.length > 1 ? Integer.parseInt(items[1])
+					: DEFAULT_WEIGHT);
+			if (result[i] < 1)
+			{ throw new IllegalArgumentException("Bad weight: "+hostIPs[i]); }
+		}
+		return result;
+	}
+	
+	private static Map<String,String> parseOptions(String[] options)
+	{
+		Map<String,String> result = new HashMap<String,String>();
+		result.put(OPTION_STRATEGY, SelectionStrategies.ROUND_ROBIN);
+		result.put(OPTION_MODE, Mode.REACTIVE.name().toLowerCase());
+		result.put(OPTION_FORWARDING, Forwarding.NAT.name().toLowerCase());
+		result.put(OPTION_AFFINITY, Affinity.NONE.name().toLowerCase());
+		result.put(OPTION_PORT, Integer.toString(DEFAULT_SERVICE_PORT));
+		for (String option : options)
+		{
+			String[] items = option.split("=");
+			if (items.length != 2)
+			{ throw new IllegalArgumentException("Bad option: "+option); }
+			if (!OPTIONS.contains(items[0]))
+			{ throw new IllegalArgumentException("Unknown option: "+items[0]); }
+			result.put(items[0], items[1]);
+		}
+		return result;
+	}
+	
+	private static Mode parseMode(String mode)
+	{
+		try
+		{ return Mode.valueOf(mode.toUpperCase()); }
+		catch (IllegalArgumentException e)
+		{ throw new IllegalArgumentException("Unknown mode: "+mode); }
+	}
+	
+	private static Forwarding parseForwarding(String forwarding)
+	{
+		try
+		{ return Forwarding.valueOf(forwarding.toUpperCase()); }
+		catch (IllegalArgumentException e)
+		{ throw new IllegalArgumentException("Unknown forwarding: "+forwarding); }
+	}
+	
+	private static Affinity parseAffinity(String affinity)
+	{
+		try
+		{ return Affinity.valueOf(affinity.toUpperCase()); }
+		catch (IllegalArgumentException e)
+		{ throw new IllegalArgumentException("Unknown affinity: "+affinity); }
+	}
+	
+	private static short parsePort(String port)
+	{
+		if (null == port)
+		{ return 0; }
+		int result;
+		try
+		{ result = Integer.parseInt(port); }
+		catch (NumberFormatException e)
+		{ result = -1; }
+		if (result < 1 || result > 0xffff)
+		{ throw new IllegalArgumentException("Bad port: "+port); }
+		return (short)result;
 	}
 	
 	/**
@@ -65,15 +339,307 @@ public class LoadBalancerInstance
 	{ return this.virtualMAC; }
 	
 	/**
-	 * Get the IP address for the next host in round-robin order.
-	 * @return the IP address for the next host
+	 * Get the number of hosts to which requests are balanced.
+	 */
+	public int getHostCount()
+	{ return this.hostIPs.size(); }
+	
+	/**
+	 * Get the IP address of a host.
+	 * @param hostIndex the index of the host
+	 */
+	public int getHostIP(int hostIndex)
+	{ return this.hostIPs.get(hostIndex); }
+	
+	/**
+	 * Get the index of a host.
+	 * @param hostIP the IP address of the host
+	 * @return the index of the host, -1 if it is not one of this instance's
+	 *         hosts
 	 */
-	public int getNextHostIP()
+	public int indexOfHost(int hostIP)
 	{
-		lastHost++;
-		if (lastHost >= hostIPs.size())
-		{ lastHost = 0; }
-		return hostIPs.get(lastHost);
+		for (int i = 0; i < this.hostIPs.size(); i++)
+		{
+			if (this.hostIPs.get(i) == hostIP)
+			{ return i; }
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the relative capacity of a host.
+	 * @param hostIndex the index of the host
+	 */
+	public int getHostWeight(int hostIndex)
+	{ return this.hostWeights[hostIndex]; }
+	
+	/**
+	 * Check whether a host passes its health checks.
+	 * @param hostIndex the index of the host
+	 */
+	public synchronized boolean isHostUp(int hostIndex)
+	{ return this.hostsUp[hostIndex]; }
+	
+	/**
+	 * Mark a host as passing or failing its health checks. A host that is
+	 * down gets no new connections, but its existing connections are left
+	 * alone.
+	 * @param hostIndex the index of the host
+	 * @param up whether the host passes its health checks
+	 */
+	public synchronized void setHostUp(int hostIndex, boolean up)
+	{
+		if (this.hostsUp[hostIndex] == up)
+		{ return; }
+		this.hostsUp[hostIndex] = up;
+		this.updateAvailableHosts();
+		this.strategy.reset(this);
+	}
+	
+	/**
+	 * Recompute the hosts new connections may go to: those that are up, or
+	 * all hosts if none are, since some may only be failing their checks.
+	 */
+	private void updateAvailableHosts()
+	{
+		int count = 0;
+		for (boolean up : this.hostsUp)
+		{
+			if (up)
+			{ count++; }
+		}
+		int[] available = new int[(count > 0 ? count : this.hostsUp.length)];
+		boolean[] isAvailable = new boolean[this.hostsUp.length];
+		int n = 0;
+		for (int i = 0; i < this.hostsUp.length; i++)
+		{
+			if (this.hostsUp[i] || 0 == count)
+			{
+				available[n++] = i;
+				isAvailable[i] = true;
+			}
+		}
+		this.hostsAvailable = isAvailable;
+		this.availableHosts = available;
+	}
+	
+	/**
+	 * Take over the state of the instance this one replaces: the number of
+	 * connections and the health of each host the two have in common.
+	 * @param previous the instance with the same virtual IP being replaced
+	 */
+	public synchronized void inheritState(LoadBalancerInstance previous)
+	{
+		for (int i = 0; i < this.hostIPs.size(); i++)
+		{
+			int previousIndex = previous.indexOfHost(this.hostIPs.get(i));
+			if (previousIndex < 0)
+			{ continue; }
+			this.activeConnections.set(i * COUNTER_STRIDE, 
+					previous.getActiveConnections(previousIndex));
+			this.hostsUp[i] = previous.isHostUp(previousIndex);
+		}
+		this.updateAvailableHosts();
+		this.strategy.reset(this);
+	}
+	
+	/**
+	 * Get the indexes of the hosts new connections may go to, in order.
+	 */
+	public int[] getAvailableHosts()
+	{ return this.availableHosts; }
+	
+	/**
+	 * Check whether new connections may go to a host.
+	 * @param hostIndex the index of the host
+	 */
+	public boolean isHostAvailable(int hostIndex)
+	{ return this.hostsAvailable[hostIndex]; }
+	
+	/**
+	 * Get the TCP port on which hosts' health is checked.
+	 * @return the port, 0 if hosts' health is not checked
+	 */
+	public short getHealthCheckPort()
+	{ return this.healthCheckPort; }
+	
+	/**
+	 * Get the TCP port on which hosts serve clients.
+	 */
+	public short getServicePort()
+	{ return this.servicePort; }
+	
+	/**
+	 * Get the number of connections currently assigned to a host.
+	 * @param hostIndex the index of the host
+	 */
+	public int getActiveConnections(int hostIndex)
+	{ return this.activeConnections.get(hostIndex * COUNTER_STRIDE); }
+	
+	/**
+	 * Record that a connection was assigned to a host.
+	 * @param hostIndex the index of the host
+	 */
+	public void connectionOpened(int hostIndex)
+	{ this.activeConnections.incrementAndGet(hostIndex * COUNTER_STRIDE); }
+	
+	/**
+	 * Record that a connection assigned to a host has ended.
+	 * @param hostIndex the index of the host
+	 */
+	public void connectionClosed(int hostIndex)
+	{
+		int index = hostIndex * COUNTER_STRIDE;
+		int count;
+		do
+		{
+			count = this.activeConnections.get(index);
+			if (count <= 0)
+			{ return; }
+		}
+		while (!this.activeConnections.compareAndSet(index, count, count - 1));
+	}
+	
+	/**
+	 * Get how connections to this instance are balanced.
+	 */
+	public Mode getMode()
+	{ return this.mode; }
+	
+	/**
+	 * Get how packets of connections to this instance reach hosts and return.
+	 */
+	public Forwarding getForwarding()
+	{ return this.forwarding; }
+	
+	/**
+	 * Get which connections to this instance are pinned to the same host.
+	 */
+	public Affinity getAffinity()
+	{ return this.affinity; }
+	
+	/**
+	 * Check whether switches rewrite hosts' replies from the service port
+	 * with one rule per host, rather than per connection, which they do for
+	 * instances not balanced by the controller whose replies come back
+	 * through the switches.
+	 */
+	public boolean hasHostRules()
+	{ return (this.mode != Mode.REACTIVE && this.forwarding == Forwarding.NAT); }
+	
+	/**
+	 * Get the policy for choosing the host for a new connection.
+	 */
+	public SelectionStrategy getStrategy()
+	{ return this.strategy; }
+	
+	/**
+	 * Select the host for a new connection.
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @return the index of the selected host
+	 */
+	public int selectHost(int clientIP, short clientPort, short virtualPort)
+	{ return this.strategy.select(this, clientIP, clientPort, virtualPort); }
+	
+	/**
+	 * Get the precompiled rule sending clients to a host.
+	 * @param hostIndex the index of the host
+	 * @return the rule template, null if it has not been built yet
+	 */
+	public ConnectionRuleTemplate getForwardRule(int hostIndex)
+	{ return this.forwardRules.get(hostIndex); }
+	
+	/**
+	 * Set the precompiled rule sending clients to a host.
+	 * @param hostIndex the index of the host
+	 * @param rule the rule template
+	 */
+	public void setForwardRule(int hostIndex, ConnectionRuleTemplate rule)
+	{ this.forwardRules.set(hostIndex, rule); }
+	
+	/**
+	 * Get the precompiled rule with which a switch sends clients straight to
+	 * a host, for direct server return.
+	 * @param hostIndex the index of the host
+	 * @param switchId DPID of the switch
+	 * @return the rule template, null if it has not been built yet
+	 */
+	public ConnectionRuleTemplate getDirectRule(int hostIndex, long switchId)
+	{ return this.directRules.get(hostIndex).get(switchId); }
+	
+	/**
+	 * Set the precompiled rule with which a switch sends clients straight to
+	 * a host, for direct server return.
+	 * @param hostIndex the index of the host
+	 * @param switchId DPID of the switch
+	 * @param rule the rule template
+	 */
+	public void setDirectRule(int hostIndex, long switchId, 
+			ConnectionRuleTemplate rule)
+	{ this.directRules.get(hostIndex).put(switchId, rule); }
+	
+	/**
+	 * Get the precompiled rule making hosts' replies come from the virtual IP.
+	 * @return the rule template, null if it has not been built yet
+	 */
+	public ConnectionRuleTemplate getReverseRule()
+	{ return this.reverseRule; }
+	
+	/**
+	 * Set the precompiled rule making hosts' replies come from the virtual IP.
+	 * @param rule the rule template
+	 */
+	public void setReverseRule(ConnectionRuleTemplate rule)
+	{ this.reverseRule = rule; }
+	
+	/**
+	 * Record that switches have been given rules forwarding packets to a
+	 * host by its MAC address, unless another thread already did.
+	 * @param hostIndex the index of the host
+	 * @param hostMAC the host's current MAC address
+	 * @return true if the rules for this MAC address still need installing
+	 */
+	public boolean updateTransitMAC(int hostIndex, long hostMAC)
+	{
+		long previous = this.transitMACs.get(hostIndex);
+		return (previous != hostMAC 
+				&& this.transitMACs.compareAndSet(hostIndex, previous, hostMAC));
+	}
+	
+	/**
+	 * Get the division of client addresses among hosts.
+	 * @return the partition, null if the instance is not in proactive mode
+	 */
+	public SourcePartition getPartition()
+	{ return this.partition; }
+	
+	/**
+	 * Set the division of client addresses among hosts.
+	 * @param partition the partition
+	 */
+	public void setPartition(SourcePartition partition)
+	{ this.partition = partition; }
+	
+	/**
+	 * Get the instance's options, by name, as the constructor takes them.
+	 */
+	public Map<String,String> getOptions()
+	{
+		Map<String,String> result = new HashMap<String,String>();
+		result.put(OPTION_STRATEGY, this.strategy.getName());
+		result.put(OPTION_MODE, this.mode.name().toLowerCase());
+		result.put(OPTION_FORWARDING, this.forwarding.name().toLowerCase());
+		result.put(OPTION_AFFINITY, this.affinity.name().toLowerCase());
+		result.put(OPTION_PORT, Integer.toString(this.servicePort & 0xffff));
+		if (this.healthCheckPort != 0)
+		{ 
+			result.put(OPTION_CHECK, 
+					Integer.toString(this.healthCheckPort & 0xffff)); 
+		}
+		return result;
 	}
 	
 	@Override
@@ -81,10 +647,27 @@ public class LoadBalancerInstance
 	{
 		String result = IPv4.fromIPv4Address(this.virtualIP);
 		result += " " + MACAddress.valueOf(this.virtualMAC).toString() + " ";
-		for (Integer hostIP : this.hostIPs)
-		{ result += IPv4.fromIPv4Address(hostIP) + ","; }
+		for (int i = 0; i < this.hostIPs.size(); i++)
+		{
+			result += IPv4.fromIPv4Address(this.hostIPs.get(i));
+			if (this.hostWeights[i] != DEFAULT_WEIGHT)
+			{ result += ":" + this.hostWeights[i]; }
+			result += ",";
+		}
 		if (',' == result.charAt(result.length()-1))
 		{ result = result.substring(0, result.length()-1); }
+		result += " " + OPTION_STRATEGY + "=" + this.strategy.getName();
+		result += "," + OPTION_MODE + "=" + this.mode.name().toLowerCase();
+		result += "," + OPTION_FORWARDING + "=" 
+				+ this.forwarding.name().toLowerCase();
+		result += "," + OPTION_AFFINITY + "=" 
+				+ this.affinity.name().toLowerCase();
+		result += "," + OPTION_PORT + "=" + (this.servicePort & 0xffff);
+		if (this.healthCheckPort != 0)
+		{ 
+			result += "," + OPTION_CHECK + "=" 
+					+ (this.healthCheckPort & 0xffff); 
+		}
 		return result;
 	}
 }
@@ -0,0 +1,140 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Consistent hashing with a Maglev lookup table. Every host walks its own
+ * permutation of the table's slots, claiming the next free slot in turn, so
+ * each host ends up with a share of slots proportional to its weight. The
+ * permutations depend only on the hosts' IPs, so the table is the same after
+ * a controller restart, and adding or removing a host only moves about 1/N
+ * of the slots. A connection is sent to the host in the slot its hash falls
+ * in.
+ */
+public class MaglevStrategy implements SelectionStrategy
+{
+	// Size of the lookup table; must be prime
+	public static final int TABLE_SIZE = 65537;
+	
+	private static final long SEED_OFFSET = 0x9e3779b97f4a7c15L;
+	private static final long SEED_SKIP = 0xc2b2ae3d27d4eb4fL;
+	private static final long SEED_FLOW = 0x165667b19e3779f9L;
+	
+	// Whether only the client's IP is hashed, instead of the whole 5-tuple
+	private final boolean sourceOnly;
+	
+	// Index of the host assigned to each slot
+	private volatile int[] lookup = new int[0];
+	
+	/**
+	 * Create a Maglev strategy.
+	 * @param sourceOnly true if only the client's IP should be hashed, so all
+	 *         connections from a client go to the same host
+	 */
+	public MaglevStrategy(boolean sourceOnly)
+	{ this.sourceOnly = sourceOnly; }
+	
+	@Override
+	public String getName()
+	{
+		return (this.sourceOnly ? SelectionStrategies.MAGLEV_SOURCE 
+				: SelectionStrategies.MAGLEV);
+	}
+	
+	@Override
+	public void reset(LoadBalancerInstance instance)
+	{ this.lookup = buildTable(instance); }
+	
+	@Override
+	public int select(LoadBalancerInstance instance, int clientIP,
+			short clientPort, short virtualPort)
+	{
+		long hash;
+		if (this.sourceOnly)
+		{ hash = mix(clientIP ^ SEED_FLOW); }
+		else
+		{
+			long ports = ((clientPort & 0xffffL) << 16) | (virtualPort & 0xffffL);
+			hash = mix(((clientIP & 0xffffffffL) << 32)
+					| (instance.getVirtualIP() & 0xffffffffL));
+			hash = mix(hash ^ ports ^ ((long)IPv4.PROTOCOL_TCP << 32) 
+					^ SEED_FLOW);
+		}
+		int[] table = this.lookup;
+		return table[(int)((hash >>> 1) % table.length)];
+	}
+	
+	/**
+	 * Build the lookup table for a load balancer instance's available hosts.
+	 * A host that goes down only gives up its own slots, so most other
+	 * connections keep their host.
+	 */
+	private static int[] buildTable(LoadBalancerInstance instance)
+	{
+		int hostCount = instance.getHostCount();
+		int[] available = instance.getAvailableHosts();
+		
+		// Fill the table in host IP order, so it doesn't depend on the order
+		// in which hosts appear in the config
+		long[] order = new long[available.length];
+		for (int i = 0; i < available.length; i++)
+		{ 
+			order[i] = ((instance.getHostIP(available[i]) & 0xffffffffL) << 32)
+					| available[i]; 
+		}
+		Arrays.sort(order);
+		
+		int[] offset = new int[hostCount];
+		int[] skip = new int[hostCount];
+		int[] next = new int[hostCount];
+		for (int i = 0; i < hostCount; i++)
+		{
+			long hostIP = instance.getHostIP(i) & 0xffffffffL;
+			offset[i] = (int)((mix(hostIP ^ SEED_OFFSET) >>> 1) % TABLE_SIZE);
+			skip[i] = (int)((mix(hostIP ^ SEED_SKIP) >>> 1) 
+					% (TABLE_SIZE - 1)) + 1;
+		}
+		
+		int[] table = new int[TABLE_SIZE];
+		Arrays.fill(table, -1);
+		int filled = 0;
+		while (true)
+		{
+			for (int j = 0; j < order.length; j++)
+			{
+				int host = (int)order[j];
+				
+				// Each round, a host claims as many slots as its weight
+				for (int w = instance.getHostWeight(host); w > 0; w--)
+				{
+					int slot;
+					do
+					{
+						slot = (int)((offset[host] 
+								+ (long)next[host] * skip[host]) % TABLE_SIZE);
+						next[host]++;
+					} while (table[slot] >= 0);
+					table[slot] = host;
+					filled++;
+					if (TABLE_SIZE == filled)
+					{ return table; }
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Finalization step of MurmurHash3's 64-bit hash.
+	 */
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,126 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFPacketIn;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Pool of threads handling packet-ins off Floodlight's I/O threads. Each
+ * worker has its own thread and queue, and all packet-ins of a flow go to
+ * the same worker, so a flow's packets are handled in order while different
+ * flows are handled in parallel. Packet-ins arriving while a worker's queue
+ * is full are dropped.
+ */
+public class PacketInWorkers
+{
+	/**
+	 * Handles a packet-in on a worker thread.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Handle a packet-in.
+		 * @param sw switch on which the packet was received
+		 * @param pktIn the packet-in message
+		 */
+		public void handle(IOFSwitch sw, OFPacketIn pktIn);
+	}
+	
+	// Single-thread executor of each worker
+	private final ThreadPoolExecutor[] workers;
+	
+	// Handler run for each packet-in
+	private final Handler handler;
+	
+	// Number of packet-ins dropped because a worker's queue was full
+	private final AtomicLong drops;
+	
+	/**
+	 * Start a pool of workers.
+	 * @param name prefix of the names of the worker threads
+	 * @param count the number of workers
+	 * @param queueCapacity the number of packet-ins each worker may queue
+	 * @param handler the handler run for each packet-in
+	 */
+	public PacketInWorkers(final String name, int count, int queueCapacity,
+			Handler handler)
+	{
+		this.handler = handler;
+		this.drops = new AtomicLong();
+		this.workers = new ThreadPoolExecutor[count];
+		for (int i = 0; i < count; i++)
+		{
+			final int index = i;
+			this.workers[i] = new ThreadPoolExecutor(1, 1, 0, 
+					TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(queueCapacity),
+					new ThreadFactory()
+					{
+						@Override
+						public Thread newThread(Runnable runnable)
+						{
+							Thread thread = new Thread(runnable, 
+									name + "-" + index);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+	}
+	
+	/**
+	 * Queue a packet-in for the worker that handles its flow.
+	 * @param flowHash hash of the packet's flow
+	 * @param sw switch on which the packet was received
+	 * @param pktIn the packet-in message
+	 * @return true if the packet-in was queued, false if it was dropped
+	 */
+	public boolean dispatch(int flowHash, final IOFSwitch sw,
+			final OFPacketIn pktIn)
+	{
+		int index = (flowHash & Integer.MAX_VALUE) % this.workers.length;
+		try
+		{
+			this.workers[index].execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{ handler.handle(sw, pktIn); }
+				});
+		}
+		catch (RejectedExecutionException e)
+		{
+			this.drops.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the number of workers.
+	 */
+	public int size()
+	{ return this.workers.length; }
+	
+	/**
+	 * Get the number of packet-ins dropped because a worker's queue was full.
+	 */
+	public long getDrops()
+	{ return this.drops.get(); }
+	
+	/**
+	 * Stop the workers once their queued packet-ins have been handled.
+	 */
+	public void shutdown()
+	{
+		for (ThreadPoolExecutor worker : this.workers)
+		{ worker.shutdown(); }
+	}
+}
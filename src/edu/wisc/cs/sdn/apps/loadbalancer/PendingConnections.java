@@ -0,0 +1,248 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Arrays;
+
+/**
+ * Table of the connections to virtual IPs that were just assigned a host,
+ * so SYNs retransmitted before the connection's rules reach the switch get
+ * the same host instead of a new selection. Entries expire after a short
+ * window, on a timer wheel: each tick of the wheel has its own small table
+ * of the connections added during it, and a tick's table is emptied at once
+ * when the wheel comes round to it again, so expiry costs nothing per
+ * connection. Lookups check every tick's table. The wheel is split into
+ * segments, each with its own lock, like the connection table.
+ */
+public class PendingConnections
+{
+	// Number of ticks on the wheel; entries live for between TICKS - 1 and
+	// TICKS ticks
+	private static final int TICKS = 8;
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	// Most connections a tick's table holds; more are not recorded
+	private static final int MAX_TICK_SIZE = 1 << 16;
+	
+	// Number of segments; a power of 2
+	private static final int SEGMENT_BITS = 4;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+	
+	/**
+	 * The connections added during one tick, in primitive arrays using open
+	 * addressing with linear probing.
+	 */
+	private static class Tick
+	{
+		// Client IP in the upper 32 bits and virtual IP in the lower 32 bits;
+		// 0 if the slot is empty
+		private long[] addresses;
+		
+		// Client port in bits 48-63, virtual port in bits 32-47, and the IP
+		// of the assigned host in the lower 32 bits
+		private long[] portsAndHosts;
+		
+		// Number of connections in the table
+		private int size;
+		
+		private Tick()
+		{
+			this.addresses = new long[INITIAL_CAPACITY];
+			this.portsAndHosts = new long[INITIAL_CAPACITY];
+			this.size = 0;
+		}
+		
+		/**
+		 * Find the slot holding a connection, or the empty slot where it
+		 * belongs.
+		 */
+		private int find(long addressKey, long portKey)
+		{
+			int mask = this.addresses.length - 1;
+			int slot = hash(addressKey, portKey) & mask;
+			while (this.addresses[slot] != 0
+					&& (this.addresses[slot] != addressKey
+						|| (this.portsAndHosts[slot] & 0xffffffff00000000L)
+							!= portKey))
+			{ slot = (slot + 1) & mask; }
+			return slot;
+		}
+		
+		private void put(long addressKey, long portKey, int hostIP)
+		{
+			if (this.size >= MAX_TICK_SIZE)
+			{ return; }
+			if ((this.size + 1) * 4L > this.addresses.length * 3L)
+			{ this.resize(this.addresses.length * 2); }
+			int slot = this.find(addressKey, portKey);
+			if (0 == this.addresses[slot])
+			{ this.size++; }
+			this.addresses[slot] = addressKey;
+			this.portsAndHosts[slot] = portKey | (hostIP & 0xffffffffL);
+		}
+		
+		private void resize(int capacity)
+		{
+			long[] oldAddresses = this.addresses;
+			long[] oldPortsAndHosts = this.portsAndHosts;
+			this.addresses = new long[capacity];
+			this.portsAndHosts = new long[capacity];
+			for (int i = 0; i < oldAddresses.length; i++)
+			{
+				if (0 == oldAddresses[i])
+				{ continue; }
+				int slot = this.find(oldAddresses[i],
+						oldPortsAndHosts[i] & 0xffffffff00000000L);
+				this.addresses[slot] = oldAddresses[i];
+				this.portsAndHosts[slot] = oldPortsAndHosts[i];
+			}
+		}
+		
+		/**
+		 * Forget every connection, shrinking the table back if a burst grew
+		 * it.
+		 */
+		private void clear()
+		{
+			if (0 == this.size)
+			{ return; }
+			if (this.addresses.length > INITIAL_CAPACITY)
+			{
+				this.addresses = new long[INITIAL_CAPACITY];
+				this.portsAndHosts = new long[INITIAL_CAPACITY];
+			}
+			else
+			{
+				Arrays.fill(this.addresses, 0);
+				Arrays.fill(this.portsAndHosts, 0);
+			}
+			this.size = 0;
+		}
+	}
+	
+	/**
+	 * A wheel of ticks, holding the connections whose hash starts with the
+	 * segment's index.
+	 */
+	private static class Segment
+	{
+		private final Tick[] ticks;
+		
+		// Tick the wheel was last advanced to
+		private long currentTick;
+		
+		private Segment()
+		{
+			this.ticks = new Tick[TICKS];
+			for (int i = 0; i < TICKS; i++)
+			{ this.ticks[i] = new Tick(); }
+			this.currentTick = 0;
+		}
+		
+		/**
+		 * Advance the wheel, emptying the ticks it passes.
+		 */
+		private void advance(long tick)
+		{
+			if (tick <= this.currentTick)
+			{ return; }
+			long passed = Math.min(tick - this.currentTick, TICKS);
+			for (long t = tick - passed + 1; t <= tick; t++)
+			{ this.ticks[(int)(t % TICKS)].clear(); }
+			this.currentTick = tick;
+		}
+		
+		private synchronized int get(long addressKey, long portKey, long tick)
+		{
+			this.advance(tick);
+			for (Tick t : this.ticks)
+			{
+				int slot = t.find(addressKey, portKey);
+				if (t.addresses[slot] != 0)
+				{ return (int)t.portsAndHosts[slot]; }
+			}
+			return 0;
+		}
+		
+		private synchronized void put(long addressKey, long portKey,
+				int hostIP, long tick)
+		{
+			this.advance(tick);
+			this.ticks[(int)(this.currentTick % TICKS)].put(addressKey, portKey,
+					hostIP);
+		}
+	}
+	
+	// Segments of the table
+	private final Segment[] segments;
+	
+	// Length of a tick in milliseconds
+	private final long tickMillis;
+	
+	/**
+	 * Create a pending connection table.
+	 * @param windowMillis the least time, in milliseconds, for which a
+	 *         connection stays in the table
+	 */
+	public PendingConnections(long windowMillis)
+	{
+		this.tickMillis = Math.max(1, (windowMillis + TICKS - 2) / (TICKS - 1));
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+		{ this.segments[i] = new Segment(); }
+	}
+	
+	private static long addressKey(int clientIP, int virtualIP)
+	{ return ((long)clientIP << 32) | (virtualIP & 0xffffffffL); }
+	
+	private static long portKey(short clientPort, short virtualPort)
+	{ return ((clientPort & 0xffffL) << 48) | ((virtualPort & 0xffffL) << 32); }
+	
+	private static int hash(long addresses, long ports)
+	{
+		long h = addresses * 0x9e3779b97f4a7c15L ^ ports;
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+	
+	private Segment segmentFor(long addressKey, long portKey)
+	{ return this.segments[hash(addressKey, portKey) >>> (32 - SEGMENT_BITS)]; }
+	
+	private long currentTick()
+	{ return System.currentTimeMillis() / this.tickMillis; }
+	
+	/**
+	 * Get the host a connection was just assigned to.
+	 * @param clientIP the client's IP address
+	 * @param virtualIP the virtual IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @return the IP address of the host, 0 if the connection was not
+	 *         assigned a host within the window
+	 */
+	public int get(int clientIP, int virtualIP, short clientPort,
+			short virtualPort)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		long portKey = portKey(clientPort, virtualPort);
+		return this.segmentFor(addressKey, portKey).get(addressKey, portKey,
+				this.currentTick());
+	}
+	
+	/**
+	 * Record that a connection was just assigned a host.
+	 * @param clientIP the client's IP address
+	 * @param virtualIP the virtual IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @param hostIP the IP address of the host
+	 */
+	public void put(int clientIP, int virtualIP, short clientPort,
+			short virtualPort, int hostIP)
+	{
+		long addressKey = addressKey(clientIP, virtualIP);
+		long portKey = portKey(clientPort, virtualPort);
+		this.segmentFor(addressKey, portKey).put(addressKey, portKey, hostIP,
+				this.currentTick());
+	}
+}
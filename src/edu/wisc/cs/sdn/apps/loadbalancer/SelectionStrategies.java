@@ -0,0 +1,276 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The host selection strategies a load balancer instance can be configured
+ * with. Strategies only select hosts that are available; those that pick
+ * from a precomputed table rebuild it when a host goes up or down.
+ */
+public class SelectionStrategies
+{
+	public static final String ROUND_ROBIN = "rr";
+	public static final String WEIGHTED_ROUND_ROBIN = "wrr";
+	public static final String LEAST_CONNECTIONS = "leastconn";
+	public static final String POWER_OF_TWO_CHOICES = "p2c";
+	public static final String RANDOM = "random";
+	public static final String MAGLEV = "maglev";
+	public static final String MAGLEV_SOURCE = "maglev-src";
+	
+	// Longest sequence of hosts weighted round-robin precomputes
+	private static final int MAX_SEQUENCE_LENGTH = 1 << 16;
+	
+	// Random number generator of each thread, so threads don't contend on one
+	private static final ThreadLocal<Random> random = 
+			new ThreadLocal<Random>()
+			{
+				@Override
+				protected Random initialValue()
+				{ return new Random(); }
+			};
+	
+	/**
+	 * Create a strategy.
+	 * @param name the name of the strategy in the load balancer config
+	 * @return the strategy
+	 * @throws IllegalArgumentException if there is no strategy with that name
+	 */
+	public static SelectionStrategy create(String name)
+	{
+		if (ROUND_ROBIN.equals(name))
+		{ return new RoundRobin(); }
+		if (WEIGHTED_ROUND_ROBIN.equals(name))
+		{ return new WeightedRoundRobin(); }
+		if (LEAST_CONNECTIONS.equals(name))
+		{ return new LeastConnections(); }
+		if (POWER_OF_TWO_CHOICES.equals(name))
+		{ return new PowerOfTwoChoices(); }
+		if (RANDOM.equals(name))
+		{ return new WeightedRandom(); }
+		if (MAGLEV.equals(name))
+		{ return new MaglevStrategy(false); }
+		if (MAGLEV_SOURCE.equals(name))
+		{ return new MaglevStrategy(true); }
+		throw new IllegalArgumentException("Unknown selection strategy: "+name);
+	}
+	
+	/**
+	 * Checks whether host a is less loaded than host b, relative to their
+	 * weights.
+	 */
+	private static boolean lessLoaded(LoadBalancerInstance instance, int a, 
+			int b)
+	{
+		long loadA = (long)instance.getActiveConnections(a) 
+				* instance.getHostWeight(b);
+		long loadB = (long)instance.getActiveConnections(b)
+				* instance.getHostWeight(a);
+		return loadA < loadB;
+	}
+	
+	/**
+	 * Unweighted round-robin.
+	 */
+	private static class RoundRobin implements SelectionStrategy
+	{
+		// Number of flows sent so far
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public String getName()
+		{ return ROUND_ROBIN; }
+		
+		@Override
+		public void reset(LoadBalancerInstance instance)
+		{ this.count.set(0); }
+		
+		@Override
+		public int select(LoadBalancerInstance instance, int clientIP,
+				short clientPort, short virtualPort)
+		{
+			int[] hosts = instance.getAvailableHosts();
+			int next = this.count.getAndIncrement() & Integer.MAX_VALUE;
+			return hosts[next % hosts.length];
+		}
+	}
+	
+	/**
+	 * Smooth weighted round-robin, as done by nginx: every selection adds each
+	 * host's weight to its current value, then picks the host with the 
+	 * largest current value and subtracts the total weight from it. Hosts are
+	 * interleaved instead of being picked in bursts. The sequence repeats
+	 * after as many selections as the total weight, so one cycle is
+	 * precomputed and selection only advances a counter through it.
+	 */
+	private static class WeightedRoundRobin implements SelectionStrategy
+	{
+		private volatile int[] sequence = new int[] { 0 };
+		
+		// Number of flows sent so far
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public String getName()
+		{ return WEIGHTED_ROUND_ROBIN; }
+		
+		@Override
+		public void reset(LoadBalancerInstance instance)
+		{
+			int[] hosts = instance.getAvailableHosts();
+			int hostCount = hosts.length;
+			long total = 0;
+			for (int i = 0; i < hostCount; i++)
+			{ total += instance.getHostWeight(hosts[i]); }
+			
+			// Scale very large weights down, keeping every host in the cycle
+			int[] weights = new int[hostCount];
+			int length = 0;
+			for (int i = 0; i < hostCount; i++)
+			{
+				int weight = instance.getHostWeight(hosts[i]);
+				weights[i] = (int)Math.max(1, (total <= MAX_SEQUENCE_LENGTH 
+						? weight : (long)weight * MAX_SEQUENCE_LENGTH / total));
+				length += weights[i];
+			}
+			
+			int[] current = new int[hostCount];
+			int[] sequence = new int[length];
+			for (int n = 0; n < length; n++)
+			{
+				int best = 0;
+				for (int i = 0; i < hostCount; i++)
+				{
+					current[i] += weights[i];
+					if (current[i] > current[best])
+					{ best = i; }
+				}
+				current[best] -= length;
+				sequence[n] = hosts[best];
+			}
+			this.sequence = sequence;
+			this.count.set(0);
+		}
+		
+		@Override
+		public int select(LoadBalancerInstance instance, int clientIP,
+				short clientPort, short virtualPort)
+		{
+			int[] sequence = this.sequence;
+			int next = this.count.getAndIncrement() & Integer.MAX_VALUE;
+			return sequence[next % sequence.length];
+		}
+	}
+	
+	/**
+	 * Host with the fewest active connections relative to its weight; ties
+	 * are broken by rotating the starting host.
+	 */
+	private static class LeastConnections implements SelectionStrategy
+	{
+		private final AtomicInteger start = new AtomicInteger();
+		
+		@Override
+		public String getName()
+		{ return LEAST_CONNECTIONS; }
+		
+		@Override
+		public void reset(LoadBalancerInstance instance)
+		{ this.start.set(0); }
+		
+		@Override
+		public int select(LoadBalancerInstance instance, int clientIP,
+				short clientPort, short virtualPort)
+		{
+			int[] hosts = instance.getAvailableHosts();
+			int count = hosts.length;
+			int start = (this.start.incrementAndGet() & Integer.MAX_VALUE) 
+					% count;
+			int best = hosts[start];
+			for (int i = 1; i < count; i++)
+			{
+				int candidate = hosts[(start + i) % count];
+				if (lessLoaded(instance, candidate, best))
+				{ best = candidate; }
+			}
+			return best;
+		}
+	}
+	
+	/**
+	 * Less loaded of two hosts picked at random, relative to their weights.
+	 */
+	private static class PowerOfTwoChoices implements SelectionStrategy
+	{
+		@Override
+		public String getName()
+		{ return POWER_OF_TWO_CHOICES; }
+		
+		@Override
+		public void reset(LoadBalancerInstance instance)
+		{ }
+		
+		@Override
+		public int select(LoadBalancerInstance instance, int clientIP,
+				short clientPort, short virtualPort)
+		{
+			int[] hosts = instance.getAvailableHosts();
+			int count = hosts.length;
+			if (1 == count)
+			{ return hosts[0]; }
+			Random random = SelectionStrategies.random.get();
+			int a = random.nextInt(count);
+			int b = random.nextInt(count - 1);
+			if (b >= a)
+			{ b++; }
+			return (lessLoaded(instance, hosts[b], hosts[a]) ? hosts[b] : hosts[a]);
+		}
+	}
+	
+	/**
+	 * Random host, with probability proportional to its weight.
+	 */
+	private static class WeightedRandom implements SelectionStrategy
+	{
+		// Running totals of the hosts' weights, counting unavailable hosts as
+		// weighing nothing
+		private volatile int[] cumulativeWeights = new int[0];
+		
+		@Override
+		public String getName()
+		{ return RANDOM; }
+		
+		@Override
+		public void reset(LoadBalancerInstance instance)
+		{
+			int[] cumulative = new int[instance.getHostCount()];
+			int total = 0;
+			for (int i = 0; i < cumulative.length; i++)
+			{
+				if (instance.isHostAvailable(i))
+				{ total += instance.getHostWeight(i); }
+				cumulative[i] = total;
+			}
+			this.cumulativeWeights = cumulative;
+		}
+		
+		@Override
+		public int select(LoadBalancerInstance instance, int clientIP,
+				short clientPort, short virtualPort)
+		{
+			int[] cumulative = this.cumulativeWeights;
+			int target = random.get().nextInt(cumulative[cumulative.length-1]);
+			int low = 0;
+			int high = cumulative.length - 1;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (cumulative[mid] > target)
+				{ high = mid; }
+				else
+				{ low = mid + 1; }
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+/**
+ * Policy for choosing the host to which a new connection to a load balancer
+ * instance is sent. Hosts may be selected from several threads at once, so
+ * implementations must be thread-safe, preferably without locking.
+ */
+public interface SelectionStrategy
+{
+	/**
+	 * Get the name used for this strategy in the load balancer config.
+	 */
+	public String getName();
+	
+	/**
+	 * Rebuild any per-host state; called whenever the hosts or weights of the
+	 * load balancer instance using this strategy change.
+	 * @param instance the load balancer instance
+	 */
+	public void reset(LoadBalancerInstance instance);
+	
+	/**
+	 * Select a host for a new connection.
+	 * @param instance the load balancer instance
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param virtualPort the TCP port on the virtual IP
+	 * @return the index of the selected host
+	 */
+	public int select(LoadBalancerInstance instance, int clientIP,
+			short clientPort, short virtualPort);
+}
@@ -0,0 +1,398 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Division of the IPv4 client address space into disjoint prefixes, each
+ * assigned to one host of a load balancer instance, so connections can be
+ * balanced with one wildcard rule per prefix. Prefixes start out spread
+ * across hosts by weight; when the traffic observed per prefix is skewed,
+ * hot prefixes are split or moved and cold siblings on the same host are
+ * merged back.
+ */
+public class SourcePartition
+{
+	// Longest prefix the partition will split down to
+	public static final int MAX_PREFIX_LENGTH = 24;
+	
+	// Tag in the upper bits of the cookie of every prefix rule
+	public static final long COOKIE_TAG = 0x4c50L << 48;
+	public static final long COOKIE_TAG_MASK = 0xffffL << 48;
+	
+	/**
+	 * A client address prefix and the host it is assigned to.
+	 */
+	public static class Prefix
+	{
+		private final int address;
+		private final int length;
+		private final int host;
+		
+		// Traffic counter of the prefix's rules at the last poll
+		private long lastCount;
+		
+		// Traffic through the prefix's rules since the previous poll
+		private long recentCount;
+		
+		private Prefix(int address, int length, int host)
+		{
+			this.address = address;
+			this.length = length;
+			this.host = host;
+		}
+		
+		/**
+		 * Get the prefix's address; bits beyond its length are 0.
+		 */
+		public int getAddress()
+		{ return this.address; }
+		
+		/**
+		 * Get the network mask of the prefix.
+		 */
+		public int getMask()
+		{ return (0 == this.length ? 0 : -1 << (32 - this.length)); }
+		
+		/**
+		 * Get the index of the host the prefix is assigned to.
+		 */
+		public int getHost()
+		{ return this.host; }
+		
+		/**
+		 * Get the cookie identifying the prefix's rules.
+		 */
+		public long getCookie()
+		{
+			return COOKIE_TAG | ((long)this.length << 32)
+					| (this.address & 0xffffffffL);
+		}
+		
+		private Prefix child(int bit, int host)
+		{
+			int childAddress = this.address | (bit << (31 - this.length));
+			return new Prefix(childAddress, this.length + 1, host);
+		}
+	}
+	
+	/**
+	 * Changes to make to the rules on switches after a rebalance. Removed
+	 * prefixes must be removed before added ones are installed.
+	 */
+	public static class Change
+	{
+		public final List<Prefix> removed = new ArrayList<Prefix>();
+		public final List<Prefix> added = new ArrayList<Prefix>();
+		
+		public boolean isEmpty()
+		{ return this.removed.isEmpty() && this.added.isEmpty(); }
+	}
+	
+	// Prefixes, ordered by address
+	private final List<Prefix> prefixes;
+	
+	// Ratio of a host's share of traffic to its share of weight beyond which
+	// the partition is rebalanced
+	private final double threshold;
+	
+	/**
+	 * Create a partition spreading the address space across the hosts of a
+	 * load balancer instance by weight.
+	 * @param instance the load balancer instance
+	 * @param threshold ratio of a host's share of traffic to its share of
+	 *         weight beyond which the partition is rebalanced
+	 */
+	public SourcePartition(LoadBalancerInstance instance, double threshold)
+	{
+		this.threshold = threshold;
+		this.prefixes = new ArrayList<Prefix>();
+		
+		// Use enough prefixes that every host gets several
+		int totalWeight = 0;
+		for (int i = 0; i < instance.getHostCount(); i++)
+		{ totalWeight += instance.getHostWeight(i); }
+		int length = 2;
+		while ((1 << length) < 4 * totalWeight && length < 16)
+		{ length++; }
+		
+		// Hand out prefixes with smooth weighted round-robin
+		int[] current = new int[instance.getHostCount()];
+		for (int i = 0; i < (1 << length); i++)
+		{
+			int best = 0;
+			for (int h = 0; h < current.length; h++)
+			{
+				current[h] += instance.getHostWeight(h);
+				if (current[h] > current[best])
+				{ best = h; }
+			}
+			current[best] -= totalWeight;
+			this.prefixes.add(new Prefix(i << (32 - length), length, best));
+		}
+	}
+	
+	private SourcePartition(List<Prefix> prefixes, double threshold)
+	{
+		this.threshold = threshold;
+		this.prefixes = prefixes;
+	}
+	
+	/**
+	 * Carry the partition over to an instance replacing the one it was
+	 * created for, with the same virtual IP but different hosts. Prefixes
+	 * keep their host if the new instance still has it; the prefixes of
+	 * hosts it dropped go to the least loaded of its available hosts, and
+	 * hosts it added get prefixes as the partition is rebalanced.
+	 * @param previous the instance the partition was created for
+	 * @param instance the instance replacing it
+	 * @param change filled with the rules to change
+	 * @return the partition for the new instance
+	 */
+	public synchronized SourcePartition carryOver(LoadBalancerInstance previous,
+			LoadBalancerInstance instance, Change change)
+	{
+		List<Prefix> carried = new ArrayList<Prefix>();
+		for (Prefix prefix : this.prefixes)
+		{
+			Prefix kept = new Prefix(prefix.address, prefix.length,
+					instance.indexOfHost(previous.getHostIP(prefix.host)));
+			kept.lastCount = prefix.lastCount;
+			kept.recentCount = prefix.recentCount;
+			carried.add(kept);
+		}
+		SourcePartition result = new SourcePartition(carried, this.threshold);
+		result.evacuate(instance, change);
+		return result;
+	}
+	
+	/**
+	 * Recognize the cookie of a prefix rule.
+	 */
+	public static boolean isPrefixCookie(long cookie)
+	{ return (cookie & COOKIE_TAG_MASK) == COOKIE_TAG; }
+	
+	/**
+	 * Get the prefixes, ordered by address.
+	 */
+	public synchronized List<Prefix> getPrefixes()
+	{ return new ArrayList<Prefix>(this.prefixes); }
+	
+	/**
+	 * Get the host a client's connections are assigned to.
+	 * @param clientIP the client's IP address
+	 * @return the index of the host
+	 */
+	public synchronized int getHost(int clientIP)
+	{
+		for (Prefix prefix : this.prefixes)
+		{
+			if ((clientIP & prefix.getMask()) == prefix.address)
+			{ return prefix.host; }
+		}
+		return 0;
+	}
+	
+	/**
+	 * Record the traffic counters of the prefixes' rules, summed over all
+	 * switches.
+	 * @param counts the counters, in the same order as getPrefixes()
+	 */
+	public synchronized void updateCounts(long[] counts)
+	{
+		for (int i = 0; i < counts.length && i < this.prefixes.size(); i++)
+		{
+			Prefix prefix = this.prefixes.get(i);
+			
+			// Counters restart when rules are reinstalled
+			prefix.recentCount = (counts[i] >= prefix.lastCount
+					? counts[i] - prefix.lastCount : counts[i]);
+			prefix.lastCount = counts[i];
+		}
+	}
+	
+	/**
+	 * Rebalance the partition based on the traffic recorded by the last
+	 * call to updateCounts(). At most one prefix is split or moved per call,
+	 * so connections from few clients are disturbed at a time.
+	 * @param instance the load balancer instance
+	 * @return the rules to change
+	 */
+	public synchronized Change rebalance(LoadBalancerInstance instance)
+	{
+		Change change = new Change();
+		this.evacuate(instance, change);
+		this.merge(change);
+		
+		int[] hosts = instance.getAvailableHosts();
+		long[] load = this.getLoads(instance);
+		long totalLoad = 0;
+		int totalWeight = 0;
+		for (int h : hosts)
+		{
+			totalLoad += load[h];
+			totalWeight += instance.getHostWeight(h);
+		}
+		if (0 == totalLoad)
+		{ return change; }
+		
+		// Find the most and least loaded available hosts relative to their
+		// weights
+		int hot = hosts[0];
+		int cold = hosts[0];
+		for (int h : hosts)
+		{
+			if (load[h] * instance.getHostWeight(hot)
+					> load[hot] * instance.getHostWeight(h))
+			{ hot = h; }
+			if (load[h] * instance.getHostWeight(cold)
+					< load[cold] * instance.getHostWeight(h))
+			{ cold = h; }
+		}
+		double fairHot = (double)totalLoad * instance.getHostWeight(hot)
+				/ totalWeight;
+		double fairCold = (double)totalLoad * instance.getHostWeight(cold)
+				/ totalWeight;
+		if (hot == cold || load[hot] <= fairHot * this.threshold)
+		{ return change; }
+
+		// Move no more than the hot host has too much, or the cold host can
+		// take without becoming the hot one
+		double movable = Math.min(load[hot] - fairHot, fairCold - load[cold]);
+		
+		// Pick the hot host's busiest prefix
+		Prefix busiest = null;
+		for (Prefix prefix : this.prefixes)
+		{
+			if (prefix.host == hot && (null == busiest
+					|| prefix.recentCount > busiest.recentCount))
+			{ busiest = prefix; }
+		}
+		if (null == busiest || 0 == busiest.recentCount)
+		{ return change; }
+		
+		int index = this.prefixes.indexOf(busiest);
+		if (busiest.recentCount > movable)
+		{
+			if (busiest.length >= MAX_PREFIX_LENGTH)
+			{ return change; }
+
+			// Moving the whole prefix would overshoot, so move half of it
+			Prefix low = busiest.child(0, hot);
+			Prefix high = busiest.child(1, cold);
+			low.recentCount = busiest.recentCount / 2;
+			high.recentCount = busiest.recentCount - low.recentCount;
+			this.prefixes.set(index, low);
+			this.prefixes.add(index + 1, high);
+			change.removed.add(busiest);
+			change.added.add(low);
+			change.added.add(high);
+		}
+		else
+		{
+			Prefix moved = new Prefix(busiest.address, busiest.length, cold);
+			moved.recentCount = busiest.recentCount;
+			this.prefixes.set(index, moved);
+			change.removed.add(busiest);
+			change.added.add(moved);
+		}
+		return change;
+	}
+	
+	/**
+	 * Move the prefixes of hosts that are no longer available to the least
+	 * loaded available hosts, so their clients' new connections go elsewhere
+	 * at once. Prefixes are moved whole, and not merged, so the rules of
+	 * other prefixes stay put.
+	 * @param instance the load balancer instance
+	 * @return the rules to change
+	 */
+	public synchronized Change evacuate(LoadBalancerInstance instance)
+	{
+		Change change = new Change();
+		this.evacuate(instance, change);
+		return change;
+	}
+	
+	private void evacuate(LoadBalancerInstance instance, Change change)
+	{
+		int[] hosts = instance.getAvailableHosts();
+		long[] load = this.getLoads(instance);
+		for (int i = 0; i < this.prefixes.size(); i++)
+		{
+			Prefix prefix = this.prefixes.get(i);
+			if (prefix.host >= 0 && instance.isHostAvailable(prefix.host))
+			{ continue; }
+			
+			int coldest = hosts[0];
+			for (int h : hosts)
+			{
+				if (load[h] * instance.getHostWeight(coldest)
+						< load[coldest] * instance.getHostWeight(h))
+				{ coldest = h; }
+			}
+			Prefix moved = new Prefix(prefix.address, prefix.length, coldest);
+			moved.recentCount = prefix.recentCount;
+			load[coldest] += Math.max(1, prefix.recentCount);
+			this.prefixes.set(i, moved);
+			change.removed.add(prefix);
+			change.added.add(moved);
+		}
+	}
+	
+	/**
+	 * Get the traffic recently sent to each host.
+	 */
+	private long[] getLoads(LoadBalancerInstance instance)
+	{
+		long[] load = new long[instance.getHostCount()];
+		for (Prefix prefix : this.prefixes)
+		{
+			if (prefix.host >= 0)
+			{ load[prefix.host] += prefix.recentCount; }
+		}
+		return load;
+	}
+	
+	/**
+	 * Merge sibling prefixes assigned to the same host.
+	 */
+	private void merge(Change change)
+	{
+		boolean merged = true;
+		while (merged)
+		{
+			merged = false;
+			for (int i = 0; i + 1 < this.prefixes.size(); i++)
+			{
+				Prefix a = this.prefixes.get(i);
+				Prefix b = this.prefixes.get(i + 1);
+				if (a.length != b.length || a.host != b.host || 0 == a.length
+						|| (a.address & (1 << (32 - a.length))) != 0
+						|| b.address != (a.address | (1 << (32 - a.length))))
+				{ continue; }
+				
+				Prefix parent = new Prefix(a.address, a.length - 1, a.host);
+				parent.recentCount = a.recentCount + b.recentCount;
+				this.prefixes.set(i, parent);
+				this.prefixes.remove(i + 1);
+				
+				// A prefix added during this rebalance never reached switches
+				if (!change.added.remove(a))
+				{ change.removed.add(a); }
+				if (!change.added.remove(b))
+				{ change.removed.add(b); }
+				change.added.add(parent);
+				merged = true;
+			}
+		}
+		Collections.sort(change.added, new Comparator<Prefix>()
+			{
+				@Override
+				public int compare(Prefix a, Prefix b)
+				{ return a.length - b.length; }
+			});
+	}
+}
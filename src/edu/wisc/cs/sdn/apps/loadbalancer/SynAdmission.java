@@ -0,0 +1,162 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.cs.sdn.apps.util.TokenBuckets;
+
+/**
+ * Admission control for new connections to virtual IPs, so a SYN flood
+ * cannot make the load balancer install rules faster than switches can hold
+ * them. Each source IP and each virtual IP is limited by a token bucket.
+ * Source buckets live in a count-min sketch of fixed size, so the memory
+ * used does not depend on how many sources send SYNs; a source is only
+ * limited once every one of its buckets is empty.
+ */
+public class SynAdmission
+{
+	// Rows and buckets per row of the sketch of sources
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 4096;
+	
+	// Seeds of the hash for each row of the sketch
+	private static final int[] SEEDS =
+		{ 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+	
+	/**
+	 * Outcome of admission control for a SYN.
+	 */
+	public enum Verdict
+	{
+		/** The connection may be balanced */
+		ADMIT,
+		/** The source has sent too many SYNs */
+		DROP_SOURCE,
+		/** The virtual IP has received too many SYNs */
+		DROP_VIRTUAL
+	}
+	
+	// Buckets of sources, DEPTH rows of WIDTH buckets; null if sources are
+	// not limited
+	private final TokenBuckets sourceBuckets;
+	
+	// Buckets of the virtual IPs; null if virtual IPs are not limited
+	private volatile TokenBuckets virtualBuckets;
+	
+	// Index of each virtual IP's bucket; replaced together with the buckets
+	private volatile Map<Integer,Integer> virtualIndexes;
+	
+	// Limit on each virtual IP
+	private final int virtualRate;
+	private final int virtualBurst;
+	
+	// Number of SYNs dropped because of their source or virtual IP
+	private final AtomicLong sourceDrops;
+	private final AtomicLong virtualDrops;
+	
+	/**
+	 * Create admission control.
+	 * @param virtualIPs the virtual IPs to limit
+	 * @param sourceRate SYNs per second allowed from each source, 0 for no
+	 *         limit
+	 * @param sourceBurst SYNs a source may send at once
+	 * @param virtualRate SYNs per second allowed to each virtual IP, 0 for no
+	 *         limit
+	 * @param virtualBurst SYNs a virtual IP may receive at once
+	 */
+	public SynAdmission(Collection<Integer> virtualIPs, int sourceRate,
+			int sourceBurst, int virtualRate, int virtualBurst)
+	{
+		this.sourceBuckets = (sourceRate > 0
+				? new TokenBuckets(DEPTH * WIDTH, sourceRate, sourceBurst)
+				: null);
+		this.virtualRate = virtualRate;
+		this.virtualBurst = virtualBurst;
+		this.setVirtualIPs(virtualIPs);
+		this.sourceDrops = new AtomicLong();
+		this.virtualDrops = new AtomicLong();
+	}
+	
+	/**
+	 * Change the virtual IPs to limit. Every virtual IP starts again with a
+	 * full bucket.
+	 * @param virtualIPs the virtual IPs to limit
+	 */
+	public synchronized void setVirtualIPs(Collection<Integer> virtualIPs)
+	{
+		Map<Integer,Integer> indexes = new HashMap<Integer,Integer>();
+		for (int virtualIP : virtualIPs)
+		{ indexes.put(virtualIP, indexes.size()); }
+		
+		// A lookup may see the new buckets with the old indexes, so there are
+		// always enough buckets for either
+		int count = Math.max(indexes.size(), 
+				(null == this.virtualIndexes ? 0 : this.virtualIndexes.size()));
+		this.virtualBuckets = (this.virtualRate > 0
+				? new TokenBuckets(count, this.virtualRate, this.virtualBurst)
+				: null);
+		this.virtualIndexes = indexes;
+	}
+	
+	private static int hash(int value, int seed)
+	{
+		int h = value ^ seed;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+	
+	/**
+	 * Decide whether to balance a new connection, taking a token from the
+	 * buckets of its source and virtual IP.
+	 * @param sourceIP the client's IP address
+	 * @param virtualIP the virtual IP address
+	 * @return the verdict
+	 */
+	public Verdict admit(int sourceIP, int virtualIP)
+	{
+		if (this.sourceBuckets != null)
+		{
+			// Collisions only drain buckets, so the fullest of the source's
+			// buckets is the closest to its own
+			boolean admitted = false;
+			for (int row = 0; row < DEPTH; row++)
+			{
+				int index = row * WIDTH + (hash(sourceIP, SEEDS[row]) & (WIDTH - 1));
+				admitted |= this.sourceBuckets.tryAcquire(index);
+			}
+			if (!admitted)
+			{
+				this.sourceDrops.incrementAndGet();
+				return Verdict.DROP_SOURCE;
+			}
+		}
+		
+		Integer index = this.virtualIndexes.get(virtualIP);
+		TokenBuckets buckets = this.virtualBuckets;
+		if (buckets != null && index != null && !buckets.tryAcquire(index))
+		{
+			this.virtualDrops.incrementAndGet();
+			return Verdict.DROP_VIRTUAL;
+		}
+		return Verdict.ADMIT;
+	}
+	
+	/**
+	 * Get the number of SYNs dropped because their source sent too many.
+	 */
+	public long getSourceDrops()
+	{ return this.sourceDrops.get(); }
+	
+	/**
+	 * Get the number of SYNs dropped because their virtual IP received too
+	 * many.
+	 */
+	public long getVirtualDrops()
+	{ return this.virtualDrops.get(); }
+}
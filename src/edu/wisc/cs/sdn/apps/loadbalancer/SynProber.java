@@ -0,0 +1,173 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.l3routing.IL3RoutingService;
+import edu.wisc.cs.sdn.apps.util.IHostAddressService;
+import edu.wisc.cs.sdn.apps.util.PacketHeaders;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Checks hosts by sending them a TCP SYN from their instance's virtual IP,
+ * out of a switch with a route to the host. A SYN-ACK means the host passes
+ * and is answered with a RST, so the host forgets the connection; a RST
+ * means it fails. Replies reach the controller through a rule matching the
+ * probes' source port, since no client uses it.
+ */
+public class SynProber implements BackendProber
+{
+	// TCP port from which probes are sent; above the ephemeral ports hosts
+	// use as clients
+	public static final short PROBE_PORT = (short)61000;
+	
+	private static Logger log = LoggerFactory.getLogger(
+			SynProber.class.getSimpleName());
+	
+	private final IFloodlightProviderService floodlightProv;
+	
+	private final IL3RoutingService l3RoutingProv;
+	
+	private final IHostAddressService hostAddressProv;
+	
+	private final Random random;
+	
+	/**
+	 * Create a prober.
+	 * @param floodlightProv the switches probes are sent from
+	 * @param l3RoutingProv the routes towards hosts
+	 * @param hostAddressProv the MAC addresses of hosts
+	 */
+	public SynProber(IFloodlightProviderService floodlightProv,
+			IL3RoutingService l3RoutingProv,
+			IHostAddressService hostAddressProv)
+	{
+		this.floodlightProv = floodlightProv;
+		this.l3RoutingProv = l3RoutingProv;
+		this.hostAddressProv = hostAddressProv;
+		this.random = new Random();
+	}
+	
+	/**
+	 * Send a SYN to a host. If the host's MAC address or a route to it is
+	 * unknown, nothing is sent and the check fails when it times out.
+	 */
+	@Override
+	public void probe(HealthChecker checker, LoadBalancerInstance instance,
+			int hostIndex)
+	{
+		int hostIP = instance.getHostIP(hostIndex);
+		long hostMAC = this.hostAddressProv.getMACAddress(hostIP);
+		if (0 == hostMAC)
+		{
+			log.debug("Not probing host with unknown MAC address "
+					+ IPv4.fromIPv4Address(hostIP));
+			return;
+		}
+		
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{
+			Integer outPort = this.l3RoutingProv.getOutPort(sw.getId(), hostIP);
+			if (null == outPort)
+			{ continue; }
+			
+			TCP tcp = new TCP();
+			tcp.setSourcePort(PROBE_PORT);
+			tcp.setDestinationPort(instance.getHealthCheckPort());
+			synchronized (this.random)
+			{ tcp.setSequence(this.random.nextInt()); }
+			tcp.setFlags(PacketHeaders.TCP_FLAG_SYN);
+			tcp.setWindowSize((short)1024);
+			tcp.setDataOffset((byte)5);
+			
+			SwitchCommands.sendPacket(sw, outPort.shortValue(),
+					buildPacket(instance, hostIP, hostMAC, tcp));
+			return;
+		}
+		log.debug("Not probing host with no known route "
+				+ IPv4.fromIPv4Address(hostIP));
+	}
+	
+	/**
+	 * Check whether a packet is a reply to a probe.
+	 * @param headers the packet's headers
+	 * @param instance the load balancer instance of the packet's destination,
+	 *         null if it is not sent to a virtual IP
+	 */
+	public static boolean isReply(PacketHeaders headers,
+			LoadBalancerInstance instance)
+	{
+		return (instance != null && instance.getHealthCheckPort() != 0
+				&& headers.isTCP()
+				&& headers.getDestinationPort() == PROBE_PORT
+				&& headers.getSourcePort() == instance.getHealthCheckPort());
+	}
+	
+	/**
+	 * Handle a reply to a probe, reporting the outcome of the check and
+	 * resetting the connection if the host accepted it.
+	 * @param checker the health checker to report the outcome to
+	 * @param instance the load balancer instance the reply is sent to
+	 * @param headers the reply's headers
+	 * @param sw the switch on which the reply was received
+	 * @param inPort the port on which the reply was received
+	 */
+	public static void handleReply(HealthChecker checker,
+			LoadBalancerInstance instance, PacketHeaders headers,
+			IOFSwitch sw, int inPort)
+	{
+		int hostIP = headers.getSourceIP();
+		byte flags = headers.getTCPFlags();
+		if ((flags & PacketHeaders.TCP_FLAG_RST) != 0)
+		{
+			checker.reportResult(instance.getVirtualIP(), hostIP, false);
+			return;
+		}
+		if ((flags & PacketHeaders.TCP_FLAG_SYN) == 0
+				|| (flags & PacketHeaders.TCP_FLAG_ACK) == 0)
+		{ return; }
+		checker.reportResult(instance.getVirtualIP(), hostIP, true);
+		
+		// Reset the connection, taking the sequence number the host expects
+		// from its acknowledgment
+		TCP synAck = (TCP)headers.deserialize().getPayload().getPayload();
+		TCP tcp = new TCP();
+		tcp.setSourcePort(PROBE_PORT);
+		tcp.setDestinationPort(instance.getHealthCheckPort());
+		tcp.setSequence(synAck.getAcknowledge());
+		tcp.setFlags(PacketHeaders.TCP_FLAG_RST);
+		tcp.setWindowSize((short)0);
+		tcp.setDataOffset((byte)5);
+		SwitchCommands.sendPacket(sw, (short)inPort, buildPacket(instance,
+				hostIP, headers.getSourceMAC(), tcp));
+	}
+	
+	/**
+	 * Build a packet from an instance's virtual IP to a host.
+	 */
+	private static Ethernet buildPacket(LoadBalancerInstance instance,
+			int hostIP, long hostMAC, TCP tcp)
+	{
+		IPv4 ip = new IPv4();
+		ip.setSourceAddress(instance.getVirtualIP());
+		ip.setDestinationAddress(hostIP);
+		ip.setProtocol(IPv4.PROTOCOL_TCP);
+		ip.setTtl((byte)64);
+		ip.setPayload(tcp);
+		
+		Ethernet eth = new Ethernet();
+		eth.setEtherType(Ethernet.TYPE_IPv4);
+		eth.setSourceMACAddress(instance.getVirtualMAC());
+		eth.setDestinationMACAddress(MACAddress.valueOf(hostMAC).toBytes());
+		eth.setPayload(ip);
+		return eth;
+	}
+}
@@ -0,0 +1,70 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+
+/**
+ * Immutable map from virtual IP to load balancer instance, for looking up
+ * the instance of a packet's destination without boxing or allocation.
+ * Virtual IPs are stored in a primitive array using open addressing with
+ * linear probing, at most half full. The table is never changed once built;
+ * when instances change, a new table is built and replaces it.
+ */
+public class VirtualIPTable
+{
+	// Virtual IP in each slot, 0 if the slot is empty
+	private final int[] virtualIPs;
+	
+	// Instance in each slot
+	private final LoadBalancerInstance[] instances;
+	
+	// Number of instances in the table
+	private final int size;
+	
+	/**
+	 * Build a table of load balancer instances.
+	 * @param instances the instances, each with a distinct virtual IP
+	 */
+	public VirtualIPTable(Collection<LoadBalancerInstance> instances)
+	{
+		int capacity = 16;
+		while (capacity < instances.size() * 2)
+		{ capacity *= 2; }
+		this.virtualIPs = new int[capacity];
+		this.instances = new LoadBalancerInstance[capacity];
+		for (LoadBalancerInstance instance : instances)
+		{
+			int slot = this.find(instance.getVirtualIP());
+			this.virtualIPs[slot] = instance.getVirtualIP();
+			this.instances[slot] = instance;
+		}
+		this.size = instances.size();
+	}
+	
+	private int find(int virtualIP)
+	{
+		int mask = this.virtualIPs.length - 1;
+		int h = virtualIP * 0x9e3779b9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (this.virtualIPs[slot] != 0 && this.virtualIPs[slot] != virtualIP)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+	
+	/**
+	 * Get the load balancer instance for a virtual IP.
+	 * @param virtualIP the virtual IP address
+	 * @return the instance, null if the address is not a virtual IP
+	 */
+	public LoadBalancerInstance get(int virtualIP)
+	{
+		if (0 == virtualIP)
+		{ return null; }
+		return this.instances[this.find(virtualIP)];
+	}
+	
+	/**
+	 * Get the number of instances in the table.
+	 */
+	public int size()
+	{ return this.size; }
+}
@@ -2,7 +2,7 @@ package edu.wisc.cs.sdn.apps.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.openflow.protocol.OFMessage;
@@ -39,6 +39,10 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
     
     // Interface to device manager service
     private IDeviceService deviceProv;
+    
+    // MAC address of each host IP, kept current by device events; created
+    // up front, since the module system asks for our services before init
+    private final HostAddressCache hostAddresses = new HostAddressCache();
 
 	@Override
 	public void init(FloodlightModuleContext context)
@@ -59,6 +63,11 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		
+		// Keep the cache current, starting from the hosts already known
+		this.deviceProv.addListener(this.hostAddresses);
+		for (IDevice device : this.deviceProv.getAllDevices())
+		{ this.hostAddresses.update(device); }
 	}
 
 	/**
@@ -66,7 +75,12 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IHostAddressService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -74,7 +88,12 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, IFloodlightService>();
+		services.put(IHostAddressService.class, this.hostAddresses);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -129,31 +148,24 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
 		
-		// We only care about ARP packets
-		Ethernet eth = new Ethernet();
-		eth.deserialize(pktIn.getPacketData(), 0, pktIn.getPacketData().length);
-		if (eth.getEtherType() != Ethernet.TYPE_ARP)
-		{ return Command.CONTINUE; }
-		ARP arp = (ARP)eth.getPayload();
-		
 		// We only care about ARP requests for IPv4 addresses
-		if (arp.getOpCode() != ARP.OP_REQUEST 
-				|| arp.getProtocolType() != ARP.PROTO_TYPE_IP)
+		PacketHeaders headers = PacketHeaders.classify(pktIn, cntx);
+		if (!headers.isARPRequest())
 		{ return Command.CONTINUE; }
 				
 		// See if we known about the device whose MAC address is being requested
-		int targetIP = IPv4.toIPv4Address(arp.getTargetProtocolAddress());
+		int targetIP = headers.getARPTargetIP();
 		log.info(String.format("Received ARP request for %s from %s",
 				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(arp.getSenderHardwareAddress()).toString()));
-		Iterator<? extends IDevice> deviceIterator = 
-				this.deviceProv.queryDevices(null, null, targetIP, null, null);
-		if (!deviceIterator.hasNext())
+				MACAddress.valueOf(headers.getARPSenderMAC()).toString()));
+		long deviceMACAddress = this.hostAddresses.getMACAddress(targetIP);
+		if (0 == deviceMACAddress)
 		{ return Command.CONTINUE; }
 		
 		// Create ARP reply
-		IDevice device = deviceIterator.next();
-		byte[] deviceMac = MACAddress.valueOf(device.getMACAddress()).toBytes();
+		Ethernet eth = headers.deserialize();
+		ARP arp = (ARP)eth.getPayload();
+		byte[] deviceMac = MACAddress.valueOf(deviceMACAddress).toBytes();
 		arp.setOpCode(ARP.OP_REPLY);
 		arp.setTargetHardwareAddress(arp.getSenderHardwareAddress());
 		arp.setTargetProtocolAddress(arp.getSenderProtocolAddress());
@@ -0,0 +1,264 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+
+/**
+ * Cache of the MAC address of every host IP known to the device manager,
+ * kept current by device events. Lookups are a probe of primitive arrays
+ * using open addressing and never lock; updates, which only come from
+ * device events, are serialized.
+ */
+public class HostAddressCache implements IDeviceListener, IHostAddressService
+{
+	public static final String NAME = HostAddressCache.class.getSimpleName();
+	
+	private static final int INITIAL_CAPACITY = 256;
+	
+	/**
+	 * Slots of the cache. An IP keeps its slot once added; removing it only
+	 * clears the MAC address, so readers never see a slot change keys.
+	 */
+	private static class Table
+	{
+		// IP address in each slot, 0 if the slot is empty
+		private final AtomicIntegerArray ips;
+		
+		// MAC address in each slot, 0 if the IP has no MAC address
+		private final AtomicLongArray macs;
+		
+		// Number of slots with an IP
+		private int used;
+		
+		private Table(int capacity)
+		{
+			this.ips = new AtomicIntegerArray(capacity);
+			this.macs = new AtomicLongArray(capacity);
+			this.used = 0;
+		}
+		
+		/**
+		 * Find the slot holding an IP, or the empty slot where it belongs.
+		 */
+		private int find(int ip)
+		{
+			int mask = this.ips.length() - 1;
+			int h = ip * 0x9e3779b9;
+			int slot = (h ^ (h >>> 16)) & mask;
+			int slotIP;
+			while ((slotIP = this.ips.get(slot)) != 0 && slotIP != ip)
+			{ slot = (slot + 1) & mask; }
+			return slot;
+		}
+	}
+	
+	// Current slots; replaced, never resized in place, when they fill up
+	private volatile Table table;
+	
+	// IPs each MAC address was last seen with, so stale IPs can be removed
+	private final Map<Long,Integer[]> deviceIPs;
+	
+	// Number of lookups that did and did not find a MAC address
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	
+	/**
+	 * Create an empty cache.
+	 */
+	public HostAddressCache()
+	{
+		this.table = new Table(INITIAL_CAPACITY);
+		this.deviceIPs = new HashMap<Long,Integer[]>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+	
+	/**
+	 * Get the MAC address of a host.
+	 * @param hostIP the host's IP address
+	 * @return the host's MAC address, 0 if unknown
+	 */
+	@Override
+	public long getMACAddress(int hostIP)
+	{
+		long mac = 0;
+		if (hostIP != 0)
+		{
+			Table table = this.table;
+			mac = table.macs.get(table.find(hostIP));
+		}
+		if (0 == mac)
+		{ this.misses.incrementAndGet(); }
+		else
+		{ this.hits.incrementAndGet(); }
+		return mac;
+	}
+	
+	@Override
+	public long getHits()
+	{ return this.hits.get(); }
+	
+	@Override
+	public long getMisses()
+	{ return this.misses.get(); }
+	
+	/**
+	 * Set the MAC address of an IP.
+	 */
+	private void put(int ip, long mac)
+	{
+		if (0 == ip)
+		{ return; }
+		Table table = this.table;
+		int slot = table.find(ip);
+		if (0 == table.ips.get(slot))
+		{
+			if ((table.used + 1) * 2 > table.ips.length())
+			{
+				table = this.resize();
+				slot = table.find(ip);
+			}
+			table.used++;
+			
+			// Set the MAC first, so readers never see the IP without it
+			table.macs.set(slot, mac);
+			table.ips.set(slot, ip);
+		}
+		else
+		{ table.macs.set(slot, mac); }
+	}
+	
+	/**
+	 * Forget the MAC address of an IP, if it is still the given one.
+	 */
+	private void remove(int ip, long mac)
+	{
+		Table table = this.table;
+		int slot = table.find(ip);
+		if (table.ips.get(slot) != 0)
+		{ table.macs.compareAndSet(slot, mac, 0); }
+	}
+	
+	/**
+	 * Build a new table holding only the IPs that have MAC addresses, with
+	 * room for as many more, and publish it to readers.
+	 */
+	private Table resize()
+	{
+		Table old = this.table;
+		int live = 0;
+		for (int i = 0; i < old.macs.length(); i++)
+		{
+			if (old.macs.get(i) != 0)
+			{ live++; }
+		}
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < (live + 1) * 4)
+		{ capacity *= 2; }
+		
+		Table table = new Table(capacity);
+		for (int i = 0; i < old.ips.length(); i++)
+		{
+			long mac = old.macs.get(i);
+			if (0 == mac)
+			{ continue; }
+			int slot = table.find(old.ips.get(i));
+			table.macs.set(slot, mac);
+			table.ips.set(slot, old.ips.get(i));
+			table.used++;
+		}
+		this.table = table;
+		return table;
+	}
+	
+	/**
+	 * Update the cache with a device's current IP addresses.
+	 * @param device the device
+	 */
+	public synchronized void update(IDevice device)
+	{
+		long mac = device.getMACAddress();
+		Integer[] ips = device.getIPv4Addresses();
+		Integer[] oldIPs = this.deviceIPs.put(mac, ips);
+		for (Integer ip : ips)
+		{ this.put(ip, mac); }
+		
+		// Forget IPs the device no longer has, without a moment where the
+		// ones it kept are missing
+		if (oldIPs != null)
+		{
+			for (Integer ip : oldIPs)
+			{
+				if (!Arrays.asList(ips).contains(ip))
+				{ this.remove(ip, mac); }
+			}
+		}
+	}
+	
+	/**
+	 * Event handler called when a host joins the network.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.update(device); }
+	
+	/**
+	 * Event handler called when a host is no longer attached to a switch.
+	 * @param device information about the host
+	 */
+	@Override
+	public synchronized void deviceRemoved(IDevice device)
+	{
+		long mac = device.getMACAddress();
+		Integer[] ips = this.deviceIPs.remove(mac);
+		if (ips != null)
+		{
+			for (Integer ip : ips)
+			{ this.remove(ip, mac); }
+		}
+	}
+	
+	/**
+	 * Event handler called when a host moves within the network.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.update(device); }
+	
+	/**
+	 * Event handler called when the IP address of a host changes.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.update(device); }
+	
+	/**
+	 * Event handler called when the VLAN of a host changes.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to do, since MAC addresses don't depend on VLANs */ }
+	
+	@Override
+	public String getName()
+	{ return NAME; }
+	
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+	
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+}
@@ -0,0 +1,27 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Lets modules look up the MAC address of a host by IP address without
+ * querying the device manager.
+ */
+public interface IHostAddressService extends IFloodlightService
+{
+	/**
+	 * Get the MAC address of a host.
+	 * @param hostIP the host's IP address
+	 * @return the host's MAC address, 0 if unknown
+	 */
+	public long getMACAddress(int hostIP);
+	
+	/**
+	 * Get the number of lookups that found a MAC address.
+	 */
+	public long getHits();
+	
+	/**
+	 * Get the number of lookups that did not find a MAC address.
+	 */
+	public long getMisses();
+}
@@ -0,0 +1,154 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Queues OpenFlow messages per switch, so each switch is written to and
+ * flushed once per batch instead of once per message.
+ */
+public class MessageBatch
+{
+	// Interface to the logging system
+    private static Logger log =
+            LoggerFactory.getLogger(MessageBatch.class.getSimpleName());
+
+    // Messages queued for a switch
+    private static class SwitchQueue
+    {
+    	private final IOFSwitch sw;
+    	private final List<OFMessage> messages;
+
+    	private SwitchQueue(IOFSwitch sw)
+    	{
+    		this.sw = sw;
+    		this.messages = new ArrayList<OFMessage>();
+    	}
+    }
+
+    // Queued messages for each switch, keyed by DPID
+    private final Map<Long,SwitchQueue> queues;
+
+    // Maximum number of messages queued for a switch before it is flushed
+    private final int maxMessages;
+
+    // Maximum time messages may be queued before the batch is flushed
+    private final long maxDelayNanos;
+
+    // Whether a barrier request should end each switch's batch
+    private boolean barrier;
+
+    // When the oldest queued message was added, 0 if nothing is queued
+    private long oldestNanos;
+
+    /**
+     * Create a batch.
+     * @param maxMessages flush a switch once this many messages are queued
+     *         for it
+     * @param maxDelayMillis flush the batch when a message is added more than
+     *         this many milliseconds after the oldest queued message
+     * @param barrier whether to end each switch's batch with a barrier
+     */
+    public MessageBatch(int maxMessages, long maxDelayMillis, boolean barrier)
+    {
+    	this.queues = new LinkedHashMap<Long,SwitchQueue>();
+    	this.maxMessages = maxMessages;
+    	this.maxDelayNanos = maxDelayMillis * 1000000L;
+    	this.barrier = barrier;
+    	this.oldestNanos = 0;
+    }
+
+    /**
+     * End each switch's batch with a barrier request, even if the batch was
+     * created without one.
+     */
+    public void requestBarrier()
+    { this.barrier = true; }
+
+    /**
+     * Queue a message for a switch.
+     * @param sw the switch to which the message should be sent
+     * @param msg the message
+     * @return true if the message was queued or sent, otherwise false
+     */
+    public boolean add(IOFSwitch sw, OFMessage msg)
+    {
+    	long now = System.nanoTime();
+    	boolean success = true;
+    	if (this.oldestNanos != 0 && now - this.oldestNanos > this.maxDelayNanos)
+    	{ success = this.flush(); }
+
+    	SwitchQueue queue = this.queues.get(sw.getId());
+    	if (null == queue || queue.sw != sw)
+    	{
+    		if (queue != null)
+    		{ success &= this.flush(queue); }
+    		queue = new SwitchQueue(sw);
+    		this.queues.put(sw.getId(), queue);
+    	}
+    	queue.messages.add(msg);
+    	if (0 == this.oldestNanos)
+    	{ this.oldestNanos = now; }
+
+    	if (queue.messages.size() >= this.maxMessages)
+    	{ success &= this.flush(queue); }
+    	return success;
+    }
+
+    /**
+     * Send all queued messages, one write and flush per switch.
+     * @return true if all messages were sent, otherwise false
+     */
+    public boolean flush()
+    {
+    	boolean success = true;
+    	Iterator<SwitchQueue> iterator = this.queues.values().iterator();
+    	while (iterator.hasNext())
+    	{
+    		success &= this.flush(iterator.next());
+    		iterator.remove();
+    	}
+    	this.oldestNanos = 0;
+    	return success;
+    }
+
+    private boolean flush(SwitchQueue queue)
+    {
+    	if (queue.messages.isEmpty())
+    	{ return true; }
+    	if (this.barrier)
+    	{
+    		OFBarrierRequest barrierRequest = new OFBarrierRequest();
+    		barrierRequest.setXid(queue.sw.getNextTransactionId());
+    		queue.messages.add(barrierRequest);
+    	}
+
+    	boolean success = true;
+    	try
+    	{
+    		queue.sw.write(queue.messages, null);
+    		queue.sw.flush();
+    		log.debug(String.format("Flushed %d messages to s%d",
+    				queue.messages.size(), queue.sw.getId()));
+    	}
+    	catch (IOException e)
+    	{
+    		log.error(String.format("Failed to send %d messages to s%d",
+    				queue.messages.size(), queue.sw.getId()));
+    		success = false;
+    	}
+    	queue.messages.clear();
+    	return success;
+    }
+}
@@ -0,0 +1,312 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import org.openflow.protocol.OFPacketIn;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Header fields of a packet-in, read straight from the raw packet bytes.
+ * Each thread reuses a single instance, which is shared with every listener
+ * through the Floodlight context, so classifying a packet allocates nothing.
+ * Listeners must not hold on to an instance after their callback returns.
+ */
+public class PacketHeaders
+{
+	public static final byte TCP_FLAG_FIN = 0x01;
+	public static final byte TCP_FLAG_SYN = 0x02;
+	public static final byte TCP_FLAG_RST = 0x04;
+	public static final byte TCP_FLAG_ACK = 0x10;
+
+	// Key under which the headers are stored in a Floodlight context
+	public static final String CONTEXT_KEY =
+			"edu.wisc.cs.sdn.apps.util.PacketHeaders";
+
+	private static final short TYPE_VLAN = (short)0x8100;
+	private static final short TYPE_QINQ = (short)0x88a8;
+	private static final int ETH_HEADER_LENGTH = 14;
+	private static final int VLAN_TAG_LENGTH = 4;
+
+	private static final FloodlightContextStore<PacketHeaders> store =
+			new FloodlightContextStore<PacketHeaders>();
+
+	private static final ThreadLocal<PacketHeaders> flyweights =
+			new ThreadLocal<PacketHeaders>()
+			{
+				@Override
+				protected PacketHeaders initialValue()
+				{ return new PacketHeaders(); }
+			};
+
+	// Packet the fields were read from
+	private byte[] data;
+
+	private long srcMAC;
+	private long dstMAC;
+	private short etherType;
+
+	// Offset of the network layer header, -1 if the packet is truncated
+	private int l3Offset;
+
+	private byte ipProtocol;
+	private int srcIP;
+	private int dstIP;
+
+	// Offset of the transport layer header, -1 if there is none
+	private int l4Offset;
+
+	private short srcPort;
+	private short dstPort;
+	private byte tcpFlags;
+
+	private short arpOpCode;
+	private short arpProtocolType;
+	private long arpSenderMAC;
+	private int arpSenderIP;
+	private int arpTargetIP;
+
+	private PacketHeaders()
+	{ }
+
+	/**
+	 * Get the headers for a packet-in, classifying the packet only if no
+	 * other listener has done so while handling the same message.
+	 * @param pktIn the packet-in message
+	 * @param cntx the Floodlight context in which the message is handled
+	 * @return this thread's headers instance, filled in for the packet
+	 */
+	public static PacketHeaders classify(OFPacketIn pktIn,
+			FloodlightContext cntx)
+	{
+		byte[] packetData = pktIn.getPacketData();
+		PacketHeaders headers = null;
+		if (cntx != null)
+		{ headers = store.get(cntx, CONTEXT_KEY); }
+		if (headers != null && headers.data == packetData)
+		{ return headers; }
+
+		headers = flyweights.get();
+		headers.parse(packetData);
+		if (cntx != null)
+		{ store.put(cntx, CONTEXT_KEY, headers); }
+		return headers;
+	}
+
+	/**
+	 * Read the header fields from a raw Ethernet frame.
+	 * @param packetData the raw frame
+	 */
+	private void parse(byte[] packetData)
+	{
+		this.data = packetData;
+		this.etherType = 0;
+		this.l3Offset = -1;
+		this.l4Offset = -1;
+		this.ipProtocol = 0;
+		this.srcIP = 0;
+		this.dstIP = 0;
+		this.srcPort = 0;
+		this.dstPort = 0;
+		this.tcpFlags = 0;
+		this.arpOpCode = 0;
+		this.arpProtocolType = 0;
+		this.arpSenderMAC = 0;
+		this.arpSenderIP = 0;
+		this.arpTargetIP = 0;
+
+		if (null == packetData || packetData.length < ETH_HEADER_LENGTH)
+		{ return; }
+		this.dstMAC = readMAC(packetData, 0);
+		this.srcMAC = readMAC(packetData, 6);
+
+		// Skip any VLAN tags
+		int offset = 12;
+		short type = readShort(packetData, offset);
+		while ((TYPE_VLAN == type || TYPE_QINQ == type)
+				&& packetData.length >= offset + VLAN_TAG_LENGTH + 2)
+		{
+			offset += VLAN_TAG_LENGTH;
+			type = readShort(packetData, offset);
+		}
+		this.etherType = type;
+		this.l3Offset = offset + 2;
+
+		if (Ethernet.TYPE_IPv4 == type)
+		{ this.parseIPv4(packetData, this.l3Offset); }
+		else if (Ethernet.TYPE_ARP == type)
+		{ this.parseARP(packetData, this.l3Offset); }
+	}
+
+	private void parseIPv4(byte[] packetData, int offset)
+	{
+		if (packetData.length < offset + 20)
+		{
+			this.l3Offset = -1;
+			return;
+		}
+		int headerLength = (packetData[offset] & 0x0f) * 4;
+		this.ipProtocol = packetData[offset + 9];
+		this.srcIP = readInt(packetData, offset + 12);
+		this.dstIP = readInt(packetData, offset + 16);
+
+		// Only the first fragment carries the transport header
+		int fragmentOffset = readShort(packetData, offset + 6) & 0x1fff;
+		if (fragmentOffset != 0 || IPv4.PROTOCOL_TCP != this.ipProtocol
+				|| packetData.length < offset + headerLength + 14)
+		{ return; }
+		this.l4Offset = offset + headerLength;
+		this.srcPort = readShort(packetData, this.l4Offset);
+		this.dstPort = readShort(packetData, this.l4Offset + 2);
+		this.tcpFlags = packetData[this.l4Offset + 13];
+	}
+
+	private void parseARP(byte[] packetData, int offset)
+	{
+		if (packetData.length < offset + 28)
+		{
+			this.l3Offset = -1;
+			return;
+		}
+		this.arpProtocolType = readShort(packetData, offset + 2);
+		this.arpOpCode = readShort(packetData, offset + 6);
+		this.arpSenderMAC = readMAC(packetData, offset + 8);
+		this.arpSenderIP = readInt(packetData, offset + 14);
+		this.arpTargetIP = readInt(packetData, offset + 24);
+	}
+
+	private static short readShort(byte[] data, int offset)
+	{ return (short)(((data[offset] & 0xff) << 8) | (data[offset+1] & 0xff)); }
+
+	private static int readInt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+				| ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+	}
+
+	private static long readMAC(byte[] data, int offset)
+	{
+		long mac = 0;
+		for (int i = 0; i < 6; i++)
+		{ mac = (mac << 8) | (data[offset+i] & 0xff); }
+		return mac;
+	}
+
+	/**
+	 * Fully deserialize the packet; only needed when building a reply.
+	 * @return the deserialized packet
+	 */
+	public Ethernet deserialize()
+	{
+		Ethernet eth = new Ethernet();
+		eth.deserialize(this.data, 0, this.data.length);
+		return eth;
+	}
+
+	/**
+	 * Get the raw packet the headers were read from.
+	 */
+	public byte[] getPacketData()
+	{ return this.data; }
+
+	public long getSourceMAC()
+	{ return this.srcMAC; }
+
+	public long getDestinationMAC()
+	{ return this.dstMAC; }
+
+	/**
+	 * Get the Ethernet type, after skipping any VLAN tags.
+	 */
+	public short getEtherType()
+	{ return this.etherType; }
+
+	/**
+	 * Checks whether the packet is a complete IPv4 packet header.
+	 */
+	public boolean isIPv4()
+	{ return Ethernet.TYPE_IPv4 == this.etherType && this.l3Offset >= 0; }
+
+	/**
+	 * Checks whether the packet carries a (first fragment) TCP header.
+	 */
+	public boolean isTCP()
+	{ return this.isIPv4() && this.l4Offset >= 0; }
+
+	/**
+	 * Checks whether the packet is a TCP segment with the SYN flag set.
+	 */
+	public boolean isTCPSyn()
+	{ return this.isTCP() && (this.tcpFlags & TCP_FLAG_SYN) != 0; }
+
+	/**
+	 * Checks whether the packet is an ARP request for an IPv4 address.
+	 */
+	public boolean isARPRequest()
+	{
+		return Ethernet.TYPE_ARP == this.etherType && this.l3Offset >= 0
+				&& ARP.OP_REQUEST == this.arpOpCode
+				&& ARP.PROTO_TYPE_IP == this.arpProtocolType;
+	}
+
+	public byte getIPProtocol()
+	{ return this.ipProtocol; }
+
+	public int getSourceIP()
+	{ return this.srcIP; }
+
+	public int getDestinationIP()
+	{ return this.dstIP; }
+
+	public short getSourcePort()
+	{ return this.srcPort; }
+
+	public short getDestinationPort()
+	{ return this.dstPort; }
+
+	public byte getTCPFlags()
+	{ return this.tcpFlags; }
+
+	/**
+	 * Get a hash of the packet's 5-tuple; packets of the same flow in the
+	 * same direction always have the same hash.
+	 */
+	public int getFlowHash()
+	{
+		long h = ((long)this.srcIP << 32) | (this.dstIP & 0xffffffffL);
+		h *= 0x9e3779b97f4a7c15L;
+		h ^= ((this.srcPort & 0xffffL) << 24) | ((this.dstPort & 0xffffL) << 8)
+				| (this.ipProtocol & 0xff);
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Get a hash of the packet's source and destination IP addresses;
+	 * packets between the same addresses in the same direction always have
+	 * the same hash, whatever their ports.
+	 */
+	public int getAddressHash()
+	{
+		long h = ((long)this.srcIP << 32) | (this.dstIP & 0xffffffffL);
+		h *= 0x9e3779b97f4a7c15L;
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	public short getARPOpCode()
+	{ return this.arpOpCode; }
+
+	public long getARPSenderMAC()
+	{ return this.arpSenderMAC; }
+
+	public int getARPSenderIP()
+	{ return this.arpSenderIP; }
+
+	public int getARPTargetIP()
+	{ return this.arpTargetIP; }
+}
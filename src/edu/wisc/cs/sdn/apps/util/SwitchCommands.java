@@ -1,15 +1,27 @@
 package edu.wisc.cs.sdn.apps.util;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import org.openflow.protocol.OFBucket;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,9 +35,99 @@ public class SwitchCommands
 	public static final short MIN_PRIORITY = Short.MIN_VALUE+1;
 	public static final short MAX_PRIORITY = Short.MAX_VALUE-1;
 	
+	// Bytes of a packet sent to the controller when the switch can buffer
+	// the rest; enough for the Ethernet, IP and TCP headers
+	public static final short PUNT_MAX_LENGTH = 128;
+	
+	// Max length asking a switch to send the whole packet, unbuffered
+	public static final short NO_BUFFER = (short)0xffff;
+	
+	// Defaults for batches of messages
+	public static final int BATCH_MAX_MESSAGES = 256;
+	public static final long BATCH_MAX_DELAY_MILLIS = 10;
+	
+	// How long to wait for a switch to reply to a statistics request
+	public static final long STATISTICS_TIMEOUT_MILLIS = 2000;
+	
 	// Interface to the logging system
     private static Logger log =
             LoggerFactory.getLogger(SwitchCommands.class.getSimpleName());
+    
+    // Batch of messages being built by the current thread, if any
+    private static final ThreadLocal<MessageBatch> currentBatch =
+    		new ThreadLocal<MessageBatch>();
+    
+    // How many times the current thread has started its current batch
+    private static final ThreadLocal<int[]> batchDepth =
+    		new ThreadLocal<int[]>()
+    		{
+    			@Override
+    			protected int[] initialValue()
+    			{ return new int[1]; }
+    		};
+    
+    /**
+     * Start queueing the messages the current thread sends to switches, so
+     * each switch is written to and flushed once when the batch ends. Calls
+     * may be nested; only the outermost endBatch() sends the messages.
+     */
+    public static void beginBatch()
+    { beginBatch(false); }
+    
+    /**
+     * Start queueing the messages the current thread sends to switches, as
+     * beginBatch() does.
+     * @param barrier true if each switch's batch should end with a barrier
+     *        request; a nested call asking for one adds it to the outer batch
+     */
+    public static void beginBatch(boolean barrier)
+    {
+    	int[] depth = batchDepth.get();
+    	if (0 == depth[0])
+    	{
+    		currentBatch.set(new MessageBatch(BATCH_MAX_MESSAGES, 
+    				BATCH_MAX_DELAY_MILLIS, barrier));
+    	}
+    	else if (barrier)
+    	{ currentBatch.get().requestBarrier(); }
+    	depth[0]++;
+    }
+    
+    /**
+     * End a batch started with beginBatch().
+     * @return true if all queued messages were sent, otherwise false
+     */
+    public static boolean endBatch()
+    {
+    	int[] depth = batchDepth.get();
+    	if (0 == depth[0])
+    	{ return true; }
+    	depth[0]--;
+    	if (depth[0] > 0)
+    	{ return true; }
+    	MessageBatch batch = currentBatch.get();
+    	currentBatch.remove();
+    	return batch.flush();
+    }
+    
+    /**
+     * Send a message to a switch, or queue it if a batch is in progress.
+     * @param sw the switch to which the message should be sent
+     * @param msg the message
+     * @throws IOException if the message could not be sent
+     */
+    private static void write(IOFSwitch sw, OFMessage msg) throws IOException
+    {
+    	MessageBatch batch = currentBatch.get();
+    	if (batch != null)
+    	{
+    		if (!batch.add(sw, msg))
+    		{ throw new IOException("Failed to flush batch"); }
+    		return;
+    	}
+    	sw.write(msg, null);
+    	sw.flush();
+    }
 
 	/**
      * Installs a rule in a switch's flow table.
@@ -65,10 +167,21 @@ public class SwitchCommands
         { length += instruction.getLengthU(); }
         rule.setLength((short)length);
 
+        return installRule(sw, rule);
+    }
+    
+    /**
+     * Installs a fully built rule in a switch's flow table. The rule is sent
+     * as is, so callers may build it from shared, precompiled parts.
+     * @param sw the switch in which the rule should be installed
+     * @param rule the rule to install
+     * @return true if the rule was sent to the switch, otherwise false
+     */
+    public static boolean installRule(IOFSwitch sw, OFFlowMod rule)
+    {
         try
         {
-            sw.write(rule, null);
-            sw.flush();
+            write(sw, rule);
             log.debug("Installing rule: "+rule);
         }
         catch (IOException e)
@@ -121,6 +234,38 @@ public class SwitchCommands
     			NO_TIMEOUT, NO_TIMEOUT);
     }
     
+    /**
+     * Change the instructions of the one rule with exactly the given priority
+     * and match criteria in a switch's flow table, keeping its counters. If
+     * the switch has no such rule, nothing is changed.
+     * @param sw the switch whose rule should be changed
+     * @param table the table holding the rule
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria of the rule
+     * @param instructions the new actions to apply to packets matching the rule
+     * @return true if the change was sent to the switch, otherwise false
+     */
+    public static boolean modifyRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+        rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+
+        rule.setMatch(matchCriteria.clone());
+        
+        rule.setInstructions(instructions);
+        
+        int length = OFFlowMod.MINIMUM_LENGTH;
+        for (OFInstruction instruction : instructions)
+        { length += instruction.getLengthU(); }
+        rule.setLength((short)length);
+
+        return installRule(sw, rule);
+    }
+    
     /**
      * Remove a rule from a switch's flow table.
      * @param sw the switch from which the rule should be removed
@@ -140,8 +285,7 @@ public class SwitchCommands
 
         try
         {
-            sw.write(rule, null);
-            sw.flush();
+            write(sw, rule);
             log.debug("Removing rule: "+rule);
         }
         catch (IOException e)
@@ -153,6 +297,175 @@ public class SwitchCommands
         return true;
     }
     
+    /**
+     * Remove the one rule with exactly the given priority and match criteria
+     * from a switch's flow table, leaving more specific rules alone.
+     * @param sw the switch from which the rule should be removed
+     * @param table the table from which the rule should be removed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria of the rule
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        rule.setTableId(table);
+        rule.setPriority(priority);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+
+        try
+        {
+            write(sw, rule);
+            log.debug("Removing rule: "+rule);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to remove rule: "+rule);
+            return false;
+        }
+
+        return true;
+    }
+    
+    /**
+     * Adds or modifies a group in a switch's group table.
+     * @param sw the switch in which the group should be installed
+     * @param command OFGroupMod.OFPGC_ADD to add a new group, or 
+     *         OFGroupMod.OFPGC_MODIFY to replace an existing group's buckets
+     * @param groupType the type of group, e.g. OFGroupMod.OFPGT_SELECT
+     * @param groupId the ID of the group
+     * @param buckets the buckets of the group
+     * @return true if the group was sent to the switch, otherwise false
+     */
+    public static boolean installGroup(IOFSwitch sw, short command, 
+    		byte groupType, int groupId, List<OFBucket> buckets)
+    {
+        OFGroupMod group = new OFGroupMod();
+        group.setCommand(command);
+        group.setGroupType(groupType);
+        group.setGroupId(groupId);
+        group.setBuckets(buckets);
+        
+        int length = OFGroupMod.MINIMUM_LENGTH;
+        for (OFBucket bucket : buckets)
+        { length += bucket.getLength(); }
+        group.setLength((short)length);
+        
+        try
+        {
+            write(sw, group);
+            log.debug("Installing group: "+group);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to install group: "+group);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Creates a group bucket.
+     * @param weight the relative weight of the bucket in a select group
+     * @param actions the actions the bucket applies
+     * @return the bucket
+     */
+    public static OFBucket createBucket(short weight, List<OFAction> actions)
+    {
+    	OFBucket bucket = new OFBucket();
+    	bucket.setWeight(weight);
+    	bucket.setWatchPort(OFPort.OFPP_ANY.getValue());
+    	bucket.setWatchGroup(OFFlowMod.OFPG_ANY);
+    	bucket.setActions(actions);
+    	
+    	int length = OFBucket.MINIMUM_LENGTH;
+    	for (OFAction action : actions)
+    	{ length += action.getLengthU(); }
+    	bucket.setLength((short)length);
+    	return bucket;
+    }
+    
+    /**
+     * Removes a group from a switch's group table.
+     * @param sw the switch from which the group should be removed
+     * @param groupId the ID of the group
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeGroup(IOFSwitch sw, int groupId)
+    {
+        OFGroupMod group = new OFGroupMod();
+        group.setCommand(OFGroupMod.OFPGC_DELETE);
+        group.setGroupId(groupId);
+        group.setLength((short)OFGroupMod.MINIMUM_LENGTH);
+        
+        try
+        {
+            write(sw, group);
+            log.debug("Removing group: "+group);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to remove group: "+group);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the statistics of the rules in a switch's flow table whose cookies
+     * match. Waits for the switch to reply.
+     * @param sw the switch to query
+     * @param table the table whose rules should be reported
+     * @param cookie the cookie of the rules to report
+     * @param cookieMask the bits of the cookie that must match
+     * @return the statistics of each matching rule, null if the switch did
+     *         not reply in time
+     */
+    public static List<OFFlowStatisticsReply> getFlowStatistics(IOFSwitch sw,
+    		byte table, long cookie, long cookieMask)
+    {
+    	OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
+    	specificReq.setMatch(new OFMatch());
+    	specificReq.setTableId(table);
+    	specificReq.setOutPort(OFPort.OFPP_ANY.getValue());
+    	specificReq.setOutGroup(OFFlowMod.OFPG_ANY);
+    	specificReq.setCookie(cookie);
+    	specificReq.setCookieMask(cookieMask);
+
+    	OFStatisticsRequest req = new OFStatisticsRequest();
+    	req.setStatisticType(OFStatisticsType.FLOW);
+    	req.setStatistics(Collections.singletonList(specificReq));
+    	req.setLengthU(OFStatisticsRequest.MINIMUM_LENGTH
+    			+ specificReq.getLength());
+
+    	List<OFFlowStatisticsReply> result =
+    			new ArrayList<OFFlowStatisticsReply>();
+    	try
+    	{
+    		List<OFStatistics> stats = sw.queryStatistics(req).get(
+    				STATISTICS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    		for (OFStatistics stat : stats)
+    		{
+    			if (stat instanceof OFFlowStatisticsReply)
+    			{ result.add((OFFlowStatisticsReply)stat); }
+    		}
+    	}
+    	catch (Exception e)
+    	{
+    		log.error(String.format("Failed to get flow statistics from s%d",
+    				sw.getId()));
+    		return null;
+    	}
+
+    	return result;
+    }
+
 	/**
 	 * Sends a packet out of a switch.
 	 * @param outSw the switch out which the packet should be forwarded
@@ -183,8 +496,7 @@ public class SwitchCommands
         // Send the packet to the switch
         try 
         {
-            outSw.write(pktOut, null);
-            outSw.flush();
+            write(outSw, pktOut);
             log.info("Forwarding packet: "+eth.toString());
         }
         catch (IOException e) 
@@ -195,4 +507,83 @@ public class SwitchCommands
         
         return true;
 	}
+	
+	/**
+	 * Sends a packet a switch has buffered through the switch's flow tables.
+	 * @param outSw the switch holding the packet
+	 * @param inPort the switch port on which the packet was received
+	 * @param bufferId the ID of the buffer holding the packet
+	 * @return true if the request was sent to the switch, otherwise false
+	 */
+	public static boolean releasePacketToTable(IOFSwitch outSw, int inPort,
+			int bufferId)
+	{
+        OFPacketOut pktOut = new OFPacketOut();
+        pktOut.setBufferId(bufferId);
+        pktOut.setInPort(inPort);
+        
+        OFActionOutput output = new OFActionOutput();
+        output.setPort(OFPort.OFPP_TABLE);
+        pktOut.setActions(Arrays.asList((OFAction)output));
+        pktOut.setActionsLength((short)OFActionOutput.MINIMUM_LENGTH);
+        pktOut.setLength((short)(OFPacketOut.MINIMUM_LENGTH
+                + pktOut.getActionsLength()));
+        
+        try 
+        {
+            write(outSw, pktOut);
+            log.debug("Releasing buffered packet: "+bufferId);
+        }
+        catch (IOException e) 
+        {
+        	log.error("Failed to release buffered packet: "+bufferId);
+			return false;
+        }
+        
+        return true;
+	}
+	
+	/**
+	 * Sends a packet out of a switch through the switch's flow tables, as if
+	 * it had just been received on a port.
+	 * @param outSw the switch which should process the packet
+	 * @param inPort the switch port on which the packet should appear to have
+	 *         been received
+	 * @param eth the Ethernet packet to process
+	 * @return true if the packet was sent to the switch, otherwise false
+	 */
+	public static boolean sendPacketToTable(IOFSwitch outSw, int inPort,
+			Ethernet eth)
+	{
+		// Create an OFPacketOut for the packet
+        OFPacketOut pktOut = new OFPacketOut();
+        pktOut.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        pktOut.setInPort(inPort);
+        
+        // Resubmit the packet to the first table
+        OFActionOutput output = new OFActionOutput();
+        output.setPort(OFPort.OFPP_TABLE);
+        pktOut.setActions(Arrays.asList((OFAction)output));
+        pktOut.setActionsLength((short)OFActionOutput.MINIMUM_LENGTH);
+        
+        // Set packet data
+        byte[] packetData = eth.serialize();
+        pktOut.setPacketData(packetData);
+        pktOut.setLength((short)(OFPacketOut.MINIMUM_LENGTH
+                + pktOut.getActionsLength() + packetData.length));
+        
+        // Send the packet to the switch
+        try 
+        {
+            write(outSw, pktOut);
+            log.debug("Resubmitting packet: "+eth.toString());
+        }
+        catch (IOException e) 
+        {
+        	log.error("Failed to resubmit packet: "+eth.toString());
+			return false;
+        }
+        
+        return true;
+	}
 }
@@ -0,0 +1,81 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of token buckets sharing the same rate and burst size.
+ * Each bucket is a single long, updated with compare-and-set, so buckets
+ * can be drawn from by many threads without locking.
+ */
+public class TokenBuckets
+{
+	// Tokens are counted in fractions of a token, in the lower bits of a
+	// bucket; the upper bits hold when the bucket was last refilled
+	private static final int TOKEN_BITS = 24;
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+	private static final long TOKEN = 256;
+	
+	// Largest burst size a bucket can hold
+	public static final int MAX_BURST = (int)(TOKEN_MASK / TOKEN);
+	
+	// Milliseconds since creation when each bucket was last refilled, and its
+	// tokens; 0 if the bucket has never been used
+	private final AtomicLongArray buckets;
+	
+	// Tokens added to a bucket per second
+	private final long rate;
+	
+	// Maximum tokens in a bucket, in fractions of a token
+	private final long capacity;
+	
+	// When the buckets were created
+	private final long startNanos;
+	
+	/**
+	 * Create token buckets, all initially full.
+	 * @param count the number of buckets
+	 * @param rate the number of tokens added to each bucket per second
+	 * @param burst the maximum number of tokens in a bucket
+	 */
+	public TokenBuckets(int count, int rate, int burst)
+	{
+		this.buckets = new AtomicLongArray(count);
+		this.rate = rate;
+		this.capacity = Math.min(Math.max(burst, 1), MAX_BURST) * TOKEN;
+		this.startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Get the number of buckets.
+	 */
+	public int size()
+	{ return this.buckets.length(); }
+	
+	/**
+	 * Take a token from a bucket, if it has one.
+	 * @param index the index of the bucket
+	 * @return true if a token was taken, false if the bucket was empty
+	 */
+	public boolean tryAcquire(int index)
+	{
+		// Never 0, so a used bucket is never mistaken for an unused one
+		long now = (System.nanoTime() - this.startNanos) / 1000000L + 1;
+		while (true)
+		{
+			long bucket = this.buckets.get(index);
+			long tokens = this.capacity;
+			if (bucket != 0)
+			{
+				long elapsed = Math.max(now - (bucket >>> TOKEN_BITS), 0);
+				tokens = Math.min(this.capacity, (bucket & TOKEN_MASK)
+						+ elapsed * this.rate * TOKEN / 1000);
+			}
+			if (tokens < TOKEN)
+			{ return false; }
+			
+			long updated = (now << TOKEN_BITS) | (tokens - TOKEN);
+			if (this.buckets.compareAndSet(index, bucket, updated))
+			{ return true; }
+		}
+	}
+}